@@ -0,0 +1,139 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.explorer.download.DownloadMetrics;
+
+/**
+ * Circuit breaker of one endpoint of the Google Cloud APIs.
+ *
+ * <p>After {@code threshold} consecutive transient failures the breaker opens and
+ * requests fail immediately with {@link CircuitOpenException} for {@code openTime}
+ * milliseconds. Then a single trial request is let through: its success closes the
+ * breaker, its failure opens it again.
+ *
+ * <p>The number of open breakers is published as the {@code api.breaker.open} counter of
+ * {@link DownloadMetrics}, and {@code api.breaker.opened} and {@code api.breaker.rejected}
+ * count the times a breaker opened and the requests it rejected.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final String BREAKER_OPEN = "api.breaker.open"; //$NON-NLS-1$
+    public static final String BREAKER_OPENED = "api.breaker.opened"; //$NON-NLS-1$
+    public static final String BREAKER_REJECTED = "api.breaker.rejected"; //$NON-NLS-1$
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+    private final int threshold;
+    private final long openTime;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String endpoint, int threshold, long openTime) {
+        this.endpoint = endpoint;
+        this.threshold = Math.max(1, threshold);
+        this.openTime = Math.max(0, openTime);
+    }
+
+    /**
+     * Checks that a request may be sent.
+     *
+     * @param lastFailure failure of the previous attempt, reported as the cause.
+     * @throws CircuitOpenException if the breaker is open or its trial request is running.
+     */
+    public void acquire(Throwable lastFailure) throws CircuitOpenException {
+        acquire(lastFailure, System.currentTimeMillis());
+    }
+
+    synchronized void acquire(Throwable lastFailure, long now) throws CircuitOpenException {
+        if (state == State.OPEN && now - openedAt >= openTime) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && trialInFlight)) {
+            DownloadMetrics.increment(BREAKER_REJECTED);
+            throw new CircuitOpenException(endpoint, lastFailure);
+        }
+        if (state == State.HALF_OPEN) {
+            trialInFlight = true;
+        }
+    }
+
+    /**
+     * Records that the endpoint answered, even with an error that is not transient.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        if (state != State.CLOSED) {
+            LOGGER.info("Requests to {} resumed", endpoint);
+            DownloadMetrics.add(BREAKER_OPEN, -1);
+            state = State.CLOSED;
+        }
+    }
+
+    public void recordFailure() {
+        recordFailure(System.currentTimeMillis());
+    }
+
+    synchronized void recordFailure(long now) {
+        failures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= threshold)) {
+            if (state == State.CLOSED) {
+                LOGGER.warn("Suspending requests to {} for {} ms after {} failures", endpoint, openTime, failures);
+                DownloadMetrics.add(BREAKER_OPEN, 1);
+            }
+            DownloadMetrics.increment(BREAKER_OPENED);
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    /**
+     * Records that the request ended without telling anything about the endpoint, e.g.
+     * because it was cancelled.
+     */
+    public synchronized void recordIgnored() {
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the DICOM store of a Cloud Healthcare API URL, otherwise its host.
+     */
+    public static String getEndpoint(String url) {
+        int store = url.indexOf("/dicomStores/"); //$NON-NLS-1$
+        if (store >= 0) {
+            int end = url.indexOf('/', store + "/dicomStores/".length()); //$NON-NLS-1$
+            return end < 0 ? url : url.substring(0, end);
+        }
+        int scheme = url.indexOf("://"); //$NON-NLS-1$
+        int end = scheme < 0 ? -1 : url.indexOf('/', scheme + 3);
+        return end < 0 ? url : url.substring(0, end);
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import java.io.IOException;
+
+/**
+ * Thrown without sending a request when the circuit breaker of its endpoint is open.
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 3217432890545716263L;
+
+    public CircuitOpenException(String endpoint, Throwable cause) {
+        super("Requests to " + endpoint + " are suspended after repeated failures", cause);
+    }
+}
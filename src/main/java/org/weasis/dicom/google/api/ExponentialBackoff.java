@@ -0,0 +1,130 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import org.weasis.dicom.google.explorer.download.DownloadSettings;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries transient failures with exponential backoff and full jitter: the delay
+ * before attempt {@code n + 1} is random between 0 and
+ * {@code min(maxDelay, baseDelay * 2^(n - 1))}, so that clients failing together do
+ * not come back together. A {@code Retry-After} header sets the minimum delay, and a
+ * server asking to wait longer than {@code maxDelay} is not retried.
+ *
+ * <p>Transient failures are {@code 408}, {@code 429}, {@code 500}, {@code 502},
+ * {@code 503} and {@code 504} responses, timeouts and connection errors. Cancelled
+ * downloads are never retried.
+ */
+public class ExponentialBackoff implements RetryPolicy {
+
+    static final int STATUS_CODE_REQUEST_TIMEOUT = 408;
+    static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+    static final int STATUS_CODE_BAD_GATEWAY = 502;
+    static final int STATUS_CODE_GATEWAY_TIMEOUT = 504;
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+
+    /**
+     * @return the policy configured in {@link DownloadSettings}.
+     */
+    public static ExponentialBackoff fromSettings() {
+        return new ExponentialBackoff(DownloadSettings.getRetryAttempts(), DownloadSettings.getRetryBaseDelay(),
+                DownloadSettings.getRetryMaxDelay());
+    }
+
+    /**
+     * @param maxAttempts attempts including the first one.
+     * @param baseDelay maximum delay in milliseconds before the first retry.
+     * @param maxDelay maximum delay in milliseconds before any retry.
+     */
+    public ExponentialBackoff(int maxAttempts, long baseDelay, long maxDelay) {
+        this(maxAttempts, baseDelay, maxDelay, null);
+    }
+
+    ExponentialBackoff(int maxAttempts, long baseDelay, long maxDelay, Random random) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.random = random;
+    }
+
+    @Override
+    public long getDelay(int attempt, IOException failure) {
+        if (attempt >= maxAttempts || !isTransient(failure)) {
+            return -1;
+        }
+        long retryAfter = failure instanceof HttpResponseException
+                ? getRetryAfter(((HttpResponseException) failure).getHeaders().getRetryAfter()) : -1;
+        if (retryAfter > maxDelay) {
+            return -1;
+        }
+        long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        long delay = (long) (nextDouble() * cap);
+        return Math.max(delay, retryAfter);
+    }
+
+    private double nextDouble() {
+        return random == null ? ThreadLocalRandom.current().nextDouble() : random.nextDouble();
+    }
+
+    public static boolean isTransient(IOException failure) {
+        if (failure instanceof HttpResponseException) {
+            int status = ((HttpResponseException) failure).getStatusCode();
+            return status == STATUS_CODE_REQUEST_TIMEOUT
+                    || status == STATUS_CODE_TOO_MANY_REQUESTS
+                    || status == HttpStatusCodes.STATUS_CODE_SERVER_ERROR
+                    || status == STATUS_CODE_BAD_GATEWAY
+                    || status == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE
+                    || status == STATUS_CODE_GATEWAY_TIMEOUT;
+        }
+        // Interruptions and cancellations are final, unlike timeouts
+        return !(failure instanceof InterruptedIOException) || failure instanceof SocketTimeoutException;
+    }
+
+    /**
+     * @param value {@code Retry-After} header, in seconds or as an HTTP date.
+     * @return milliseconds to wait, -1 if there is no valid value.
+     */
+    static long getRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            // Not in seconds
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -22,11 +22,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.weasis.dicom.google.api.model.Dataset;
 import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.api.model.InstanceModel;
 import org.weasis.dicom.google.api.model.Location;
 import org.weasis.dicom.google.api.model.ProjectDescriptor;
+import org.weasis.dicom.google.api.model.SeriesModel;
 import org.weasis.dicom.google.api.model.StudyModel;
 import org.weasis.dicom.google.api.model.StudyQuery;
 import org.weasis.dicom.google.api.ui.OAuth2Browser;
+import org.weasis.dicom.google.explorer.download.DownloadMetrics;
+import org.weasis.dicom.google.explorer.download.DownloadSettings;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
@@ -59,7 +63,9 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -69,6 +75,9 @@ public class GoogleAPIClient {
 
     private static final String APPLICATION_NAME = "Weasis-GoogleDICOMExplorer/1.0";
 
+    public static final String RETRIES = "api.retries";
+    public static final String RETRY_EXHAUSTED = "api.retryExhausted";
+
     /**
      * Directory to store user credentials.
      */
@@ -109,8 +118,13 @@ public class GoogleAPIClient {
      */
     private static CloudResourceManager cloudResourceManager;
 
-    private boolean isSignedIn = false;
-    private String accessToken;
+    private volatile boolean isSignedIn = false;
+    private volatile TokenManager tokenManager;
+
+    private volatile RetryPolicy retryPolicy = ExponentialBackoff.fromSettings();
+    private final HedgedRequests hedgedRequests = DownloadSettings.isHedgingEnabled()
+            ? new HedgedRequests(DownloadSettings.getHedgePercentile(), DownloadSettings.getHedgeBudget()) : null;
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
 
     protected GoogleAPIClient() {
     }
@@ -153,59 +167,109 @@ public class GoogleAPIClient {
   }
 
     public String getAccessToken() {
-        if (accessToken == null) {
-            isSignedIn = false;
-            signIn();
-        }
-        return accessToken;
+        return signIn();
     }
 
+    /**
+     * Signs in the user once and returns the current access token. The token is kept
+     * valid in the background by the {@link TokenManager}, so this only blocks for the
+     * first sign-in or when the token could not be refreshed in time.
+     *
+     * @return access token.
+     */
     public String signIn() {
         if (!isSignedIn) {
-            int tryCount = 0;
-            Exception error;
-            do {
-                try {
-                    tryCount++;
-                    // authorization
-                    Credential credential = authorize();
-                    // set up global Oauth2 instance
-                    oauth2 = new Oauth2.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName(APPLICATION_NAME)
-                            .build();
-
-                    cloudResourceManager = new CloudResourceManager.Builder(httpTransport, JSON_FACTORY, credential)
-                            .build();
-                    accessToken = credential.getAccessToken();
-                    // run commands
-                    tokenInfo(accessToken);
-                    error = null;
-                    isSignedIn = true;
-                } catch (Exception e) {
-                    error = e;
+            synchronized (this) {
+                if (!isSignedIn) {
+                    authorizeUser();
                 }
-            } while (!isSignedIn && tryCount < 4);
-            if (error != null) {
-                throw new IllegalStateException(error);
             }
         }
-        return accessToken;
+        TokenManager manager = tokenManager;
+        if (manager == null) {
+            // Signed out concurrently
+            return signIn();
+        }
+        try {
+            return manager.getAccessToken();
+        } catch (IOException e) {
+            return reauthorize(manager);
+        }
+    }
+
+    private void authorizeUser() {
+        int tryCount = 0;
+        Exception error;
+        do {
+            try {
+                tryCount++;
+                // authorization
+                Credential credential = authorize();
+                // set up global Oauth2 instance
+                oauth2 = new Oauth2.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName(APPLICATION_NAME)
+                        .build();
+
+                cloudResourceManager = new CloudResourceManager.Builder(httpTransport, JSON_FACTORY, credential)
+                        .build();
+                // run commands
+                tokenInfo(credential.getAccessToken());
+                tokenManager = new TokenManager(credential);
+                error = null;
+                isSignedIn = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        } while (!isSignedIn && tryCount < 4);
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
     }
 
     public void signOut() {
         clearSignIn();
-        isSignedIn = false;
     }
 
+    /**
+     * Refreshes the access token. Concurrent callers share a single refresh, and the user
+     * is only authorized again if the token cannot be refreshed.
+     *
+     * @return the new access token.
+     */
     public String refresh() {
-        if (isSignedIn) {
-            isSignedIn = false;
+        TokenManager manager = tokenManager;
+        if (manager == null) {
             return signIn();
         }
-        return getAccessToken();
+        try {
+            return manager.refresh();
+        } catch (IOException e) {
+            return reauthorize(manager);
+        }
+    }
+
+    /**
+     * Authorizes the user again after the token of the manager could not be refreshed,
+     * unless another thread already did.
+     */
+    private String reauthorize(TokenManager failed) {
+        synchronized (this) {
+            if (tokenManager == failed) {
+                isSignedIn = false;
+                tokenManager = null;
+                failed.close();
+            }
+        }
+        return signIn();
     }
 
     private void clearSignIn() {
-        accessToken = null;
+        synchronized (this) {
+            isSignedIn = false;
+            if (tokenManager != null) {
+                tokenManager.close();
+                tokenManager = null;
+            }
+        }
         deleteDir(DATA_STORE_DIR);
     }
 
@@ -240,7 +304,7 @@ public class GoogleAPIClient {
     }
 
     public List<org.weasis.dicom.google.api.model.ProjectDescriptor> fetchProjects() throws Exception {
-        refresh();
+        signIn();
         List<org.weasis.dicom.google.api.model.ProjectDescriptor> result = new ArrayList<org.weasis.dicom.google.api.model.ProjectDescriptor>();
         CloudResourceManager.Projects.List request = cloudResourceManager.projects().list();
         ListProjectsResponse response;
@@ -282,29 +346,113 @@ public class GoogleAPIClient {
      * Executes a HTTP GET request with the specified URL and headers. GCP authorization is done
      * if the user is not already signed in. The access token is refreshed if it has expired
      * (HTTP 401 is returned from the server) and the request is retried with the new access token.
+     * Transient failures are retried as decided by the {@link RetryPolicy}, unless the
+     * {@link CircuitBreaker} of the endpoint is open.
      * 
      * @param url HTTP request URL.
      * @param headers HTTP request headers.
      * @return HTTP response.
      * @throws IOException if an IO error occurred.
      * @throws HttpResponseException if an error status code is detected in response.
+     * @throws CircuitOpenException if requests to the endpoint are suspended.
      * @see #signIn()
      * @see #refresh()
      */
     public HttpResponse executeGetRequest(String url, HttpHeaders headers) throws IOException {
+      return executeGetRequest(url, headers, retryPolicy);
+    }
+
+    /**
+     * Executes a HTTP GET request like {@link #executeGetRequest(String, HttpHeaders)},
+     * with a specific policy for transient failures, e.g. {@link RetryPolicy#NONE} for
+     * callers retrying on their own.
+     *
+     * @param url HTTP request URL.
+     * @param headers HTTP request headers.
+     * @param retryPolicy policy retrying transient failures.
+     * @return HTTP response.
+     * @throws IOException if an IO error occurred.
+     * @throws HttpResponseException if an error status code is detected in response.
+     * @throws CircuitOpenException if requests to the endpoint are suspended.
+     */
+    public HttpResponse executeGetRequest(String url, HttpHeaders headers, RetryPolicy retryPolicy)
+        throws IOException {
       signIn();
-      try {
-        return doExecuteGetRequest(url, headers);
-      } catch (HttpResponseException e) {
-        // Token expired?
-        if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
-          // Refresh token and try again
-          refresh();
-          return doExecuteGetRequest(url, headers);
+      CircuitBreaker breaker = circuitBreakers.computeIfAbsent(CircuitBreaker.getEndpoint(url),
+          endpoint -> new CircuitBreaker(endpoint, DownloadSettings.getBreakerThreshold(),
+              DownloadSettings.getBreakerOpenTime()));
+      boolean refreshed = false;
+      IOException failure = null;
+      for (int attempt = 1; ; attempt++) {
+        breaker.acquire(failure);
+        try {
+          HttpResponse response = doExecuteGetRequest(url, headers);
+          breaker.recordSuccess();
+          return response;
+        } catch (HttpResponseException e) {
+          // Token expired?
+          if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED && !refreshed) {
+            breaker.recordIgnored();
+            // Refresh token and try again, unless a concurrent request already did
+            TokenManager manager = tokenManager;
+            if (manager == null || Objects.equals(headers.getAuthorization(),
+                "Bearer " + manager.peekAccessToken())) {
+              refresh();
+            }
+            refreshed = true;
+            attempt--;
+            continue;
+          }
+          failure = e;
+        } catch (IOException e) {
+          failure = e;
+        }
+
+        if (!ExponentialBackoff.isTransient(failure)) {
+          if (failure instanceof HttpResponseException) {
+            breaker.recordSuccess();
+          } else {
+            breaker.recordIgnored();
+          }
+          throw failure;
+        }
+        breaker.recordFailure();
+        long delay = retryPolicy.getDelay(attempt, failure);
+        if (delay < 0) {
+          DownloadMetrics.increment(RETRY_EXHAUSTED);
+          throw failure;
+        }
+        DownloadMetrics.increment(RETRIES);
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to retry " + url);
         }
-        throw e;
       }
     }
+
+    /**
+     * Executes a QIDO-RS query, hedged when request hedging is enabled.
+     *
+     * @param kind kind of query, slow responses are detected per kind.
+     * @param url HTTP request URL.
+     * @return content of the response.
+     * @throws IOException if the request failed.
+     */
+    private String executeQuery(String kind, String url) throws IOException {
+      if (hedgedRequests == null) {
+        return executeGetRequest(url).parseAsString();
+      }
+      return hedgedRequests.get(kind, () -> executeGetRequest(url));
+    }
+
+    /**
+     * Replaces the policy retrying transient failures of GET requests.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+      this.retryPolicy = Objects.requireNonNull(retryPolicy);
+    }
     
     /**
      * Performs actual HTTP GET request using the specified URL and headers. This method also adds
@@ -320,7 +468,7 @@ public class GoogleAPIClient {
     private HttpResponse doExecuteGetRequest(String url, HttpHeaders headers) throws IOException {
       final HttpRequest request = httpTransport.createRequestFactory().buildGetRequest(
           new GenericUrl(url));
-      headers.setAuthorization("Bearer " + accessToken);
+      headers.setAuthorization("Bearer " + getAccessToken());
       request.setHeaders(headers);
       return request.execute();
     }
@@ -384,7 +532,7 @@ public class GoogleAPIClient {
                 + "/datasets/" + store.getParent().getName()
                 + "/dicomStores/" + store.getName()
                 + "/dicomWeb/studies" + formatQuery(query);
-        String data = executeGetRequest(url).parseAsString();
+        String data = executeQuery("studies", url);
         List<StudyModel> studies = objectMapper.readValue(data, new TypeReference<List<StudyModel>>() {
         });
 
@@ -400,6 +548,49 @@ public class GoogleAPIClient {
                 + "/dicomWeb/studies/" + studyId;
     }
 
+    public static String getSeriesUrl(DicomStore store, String studyId, String seriesId) {
+        return getImageUrl(store, studyId) + "/series/" + seriesId;
+    }
+
+    public static String getInstanceUrl(DicomStore store, String studyId, String seriesId, String instanceId) {
+        return getSeriesUrl(store, studyId, seriesId) + "/instances/" + instanceId;
+    }
+
+    /**
+     * Lists the series of a study using QIDO-RS.
+     *
+     * @param store DICOM store containing the study.
+     * @param studyId Study Instance UID.
+     * @return series of the study.
+     * @throws Exception if the request failed.
+     */
+    public List<SeriesModel> fetchSeries(DicomStore store, String studyId) throws Exception {
+        String data = executeQuery("series", getImageUrl(store, studyId) + "/series");
+        if (data.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return objectMapper.readValue(data, new TypeReference<List<SeriesModel>>() {
+        });
+    }
+
+    /**
+     * Lists the instances of a series using QIDO-RS.
+     *
+     * @param store DICOM store containing the series.
+     * @param studyId Study Instance UID.
+     * @param seriesId Series Instance UID.
+     * @return instances of the series.
+     * @throws Exception if the request failed.
+     */
+    public List<InstanceModel> fetchInstances(DicomStore store, String studyId, String seriesId) throws Exception {
+        String data = executeQuery("instances", getSeriesUrl(store, studyId, seriesId) + "/instances");
+        if (data.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return objectMapper.readValue(data, new TypeReference<List<InstanceModel>>() {
+        });
+    }
+
   /**
    * Generate String with GET variables for study request url
    * 
@@ -0,0 +1,273 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import com.google.api.client.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.ThreadUtil;
+import org.weasis.dicom.google.explorer.download.DownloadMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends a duplicate of a slow idempotent query and takes the first response.
+ *
+ * <p>The latencies of each kind of query are kept in a history. When no response has
+ * arrived after the configured percentile of that history, a second request is sent;
+ * the first to succeed wins and the other one is cancelled. Hedges are paid with
+ * credits earned by every query, so that they stay below the budgeted share of the
+ * traffic even when the store slows down as a whole.
+ *
+ * <p>Hedges sent, won and denied by the budget are counted by the
+ * {@code qido.hedge.sent}, {@code qido.hedge.won} and {@code qido.hedge.denied}
+ * counters of {@link DownloadMetrics}, and the time until the first response by the
+ * {@code qido.latency} timer.
+ */
+public class HedgedRequests {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HedgedRequests.class);
+
+    public static final String HEDGE_SENT = "qido.hedge.sent"; //$NON-NLS-1$
+    public static final String HEDGE_WON = "qido.hedge.won"; //$NON-NLS-1$
+    public static final String HEDGE_DENIED = "qido.hedge.denied"; //$NON-NLS-1$
+    public static final String LATENCY = "qido.latency"; //$NON-NLS-1$
+
+    static final int HISTORY_SIZE = 256;
+    static final int MIN_SAMPLES = 20;
+    static final long MIN_DELAY = 10;
+    /** Hedges that can be sent in a row after a calm period. */
+    static final double MAX_CREDITS = 5;
+
+    private static final ExecutorService QUERY_EXECUTOR =
+            ThreadUtil.buildNewFixedThreadExecutor(8, "Google Dicom Query"); //$NON-NLS-1$
+
+    /**
+     * Request sent by each attempt.
+     */
+    @FunctionalInterface
+    public interface Request {
+        HttpResponse execute() throws IOException;
+    }
+
+    private final int percentile;
+    private final double budget;
+    private final ExecutorService executor;
+    private final Map<String, LatencyHistory> histories = new ConcurrentHashMap<>();
+    private double credits;
+
+    /**
+     * @param percentile percentile of the latency after which a hedge is sent.
+     * @param budget percentage of the queries that may be hedged.
+     */
+    public HedgedRequests(int percentile, int budget) {
+        this(percentile, budget, QUERY_EXECUTOR);
+    }
+
+    HedgedRequests(int percentile, int budget, ExecutorService executor) {
+        this.percentile = Math.min(100, Math.max(1, percentile));
+        this.budget = Math.min(100, Math.max(0, budget)) / 100.0;
+        this.executor = executor;
+    }
+
+    /**
+     * Executes the request, hedged if it is slow, and reads the response.
+     *
+     * @param kind kind of query, each kind has its own latency history.
+     * @return content of the first successful response.
+     * @throws IOException if all the attempts failed, the error of the first one.
+     */
+    public String get(String kind, Request request) throws IOException {
+        LatencyHistory history = histories.computeIfAbsent(kind, k -> new LatencyHistory(HISTORY_SIZE));
+        synchronized (this) {
+            credits = Math.min(MAX_CREDITS, credits + budget);
+        }
+        long start = System.currentTimeMillis();
+        long delay = history.getPercentile(percentile);
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        Attempt primary = start(request, history, completed);
+        Attempt hedge = null;
+        try {
+            if (delay >= 0 && !waitFor(primary, Math.max(MIN_DELAY, delay))) {
+                if (takeCredit()) {
+                    DownloadMetrics.increment(HEDGE_SENT);
+                    LOGGER.debug("No {} response after {} ms, sending a hedge", kind, delay);
+                    hedge = start(request, history, completed);
+                } else {
+                    DownloadMetrics.increment(HEDGE_DENIED);
+                }
+            }
+            Attempt winner = completed.take();
+            if (winner.future.isCompletedExceptionally() && hedge != null) {
+                winner = completed.take();
+                if (winner.future.isCompletedExceptionally()) {
+                    winner = primary;
+                }
+            }
+            String data = getResult(winner);
+            if (winner == hedge) {
+                DownloadMetrics.increment(HEDGE_WON);
+            }
+            DownloadMetrics.recordTime(LATENCY, System.currentTimeMillis() - start);
+            return data;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + kind);
+        } finally {
+            primary.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    private static boolean waitFor(Attempt attempt, long millis) throws InterruptedException {
+        try {
+            attempt.future.get(millis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // Failed before the hedge is due
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized boolean takeCredit() {
+        if (credits < 1) {
+            return false;
+        }
+        credits--;
+        return true;
+    }
+
+    private static String getResult(Attempt attempt) throws IOException, InterruptedException {
+        try {
+            return attempt.future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Attempt start(Request request, LatencyHistory history, BlockingQueue<Attempt> completed) {
+        Attempt attempt = new Attempt(history);
+        attempt.future.whenComplete((data, failure) -> completed.add(attempt));
+        attempt.task = executor.submit(() -> {
+            try {
+                HttpResponse response = request.execute();
+                attempt.response = response;
+                if (attempt.cancelled) {
+                    attempt.disconnect();
+                    throw new InterruptedIOException("Cancelled"); //$NON-NLS-1$
+                }
+                String data = response.parseAsString();
+                history.add(System.currentTimeMillis() - attempt.start);
+                attempt.future.complete(data);
+            } catch (Throwable e) {
+                attempt.future.completeExceptionally(e);
+            }
+        });
+        return attempt;
+    }
+
+    private static final class Attempt {
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private final LatencyHistory history;
+        private final long start = System.currentTimeMillis();
+        private volatile Future<?> task;
+        private volatile HttpResponse response;
+        private volatile boolean cancelled;
+
+        Attempt(LatencyHistory history) {
+            this.history = history;
+        }
+
+        void cancel() {
+            if (future.isDone()) {
+                return;
+            }
+            cancelled = true;
+            // The loser would have taken at least this long, keep the slow tail in the history
+            history.add(System.currentTimeMillis() - start);
+            Future<?> t = task;
+            if (t != null) {
+                t.cancel(true);
+            }
+            // Closing the connection unblocks the thread reading the response
+            disconnect();
+        }
+
+        void disconnect() {
+            HttpResponse r = response;
+            if (r != null) {
+                try {
+                    r.disconnect();
+                } catch (IOException e) {
+                    LOGGER.debug("Cannot disconnect hedged request", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Latencies of the last requests of one kind.
+     */
+    static final class LatencyHistory {
+        private final long[] samples;
+        private int count;
+        private int next;
+
+        LatencyHistory(int size) {
+            this.samples = new long[size];
+        }
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * @return the percentile in milliseconds, -1 until enough requests completed.
+         */
+        synchronized long getPercentile(int percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.min(count - 1, Math.max(0, index))];
+        }
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import java.io.IOException;
+
+/**
+ * Decides whether and when a failed idempotent request of {@link GoogleAPIClient} is
+ * sent again.
+ *
+ * @see GoogleAPIClient#setRetryPolicy(RetryPolicy)
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param attempt number of the attempt that failed, starting at 1.
+     * @param failure error of that attempt.
+     * @return milliseconds to wait before the next attempt, or a negative value to give up.
+     */
+    long getDelay(int attempt, IOException failure);
+
+    /**
+     * Policy that never retries.
+     */
+    RetryPolicy NONE = (attempt, failure) -> -1;
+}
@@ -0,0 +1,166 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import com.google.api.client.auth.oauth2.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the OAuth access token of the signed in user valid.
+ *
+ * <p>The {@link Credential} obtained at sign-in is kept in memory and its token is
+ * refreshed in the background {@link #REFRESH_MARGIN} milliseconds before it expires,
+ * so requests read the current token without waiting. Concurrent callers asking for a
+ * refresh, e.g. after several requests received {@code 401} at the same time, share a
+ * single call to the token endpoint.
+ */
+public class TokenManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TokenManager.class);
+
+    /** Time before expiry at which the token is refreshed. */
+    static final long REFRESH_MARGIN = TimeUnit.MINUTES.toMillis(5);
+    /** Delay before trying again after a failed background refresh. */
+    static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private static final ScheduledExecutorService REFRESH_EXECUTOR = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "Google Dicom Token"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Credential credential;
+    private volatile String accessToken;
+    private volatile long expiresAt;
+
+    // Guarded by this
+    private CompletableFuture<String> refreshing;
+    private ScheduledFuture<?> scheduled;
+    private boolean closed;
+
+    public TokenManager(Credential credential) {
+        this.credential = credential;
+        update();
+    }
+
+    /**
+     * @return the current token, only waiting for a refresh if it has already expired.
+     * @throws IOException if the token has expired and cannot be refreshed.
+     */
+    public String getAccessToken() throws IOException {
+        long now = System.currentTimeMillis();
+        if (accessToken == null || now >= expiresAt) {
+            return refresh();
+        }
+        if (now >= expiresAt - REFRESH_MARGIN) {
+            refreshAsync();
+        }
+        return accessToken;
+    }
+
+    /**
+     * @return the current token without checking its expiry.
+     */
+    public String peekAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * Refreshes the token, or waits for the refresh already running.
+     *
+     * @return the new token.
+     * @throws IOException if the token cannot be refreshed.
+     */
+    public String refresh() throws IOException {
+        try {
+            return refreshAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while refreshing the access token");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    synchronized CompletableFuture<String> refreshAsync() {
+        if (refreshing == null) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            refreshing = future;
+            REFRESH_EXECUTOR.execute(() -> doRefresh(future));
+        }
+        return refreshing;
+    }
+
+    private void doRefresh(CompletableFuture<String> future) {
+        try {
+            if (!credential.refreshToken()) {
+                throw new IOException("The access token cannot be refreshed");
+            }
+            update();
+            LOGGER.debug("Access token refreshed, valid for {} s", (expiresAt - System.currentTimeMillis()) / 1000);
+            future.complete(accessToken);
+        } catch (Exception e) {
+            LOGGER.warn("Cannot refresh the access token", e);
+            schedule(RETRY_DELAY);
+            future.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                refreshing = null;
+            }
+        }
+    }
+
+    private void update() {
+        accessToken = credential.getAccessToken();
+        Long expiration = credential.getExpirationTimeMilliseconds();
+        // Without an expiry, the token is refreshed when a request is rejected
+        expiresAt = expiration == null ? Long.MAX_VALUE : expiration;
+        if (expiration != null) {
+            schedule(Math.max(0, expiration - REFRESH_MARGIN - System.currentTimeMillis()));
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        if (closed) {
+            return;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = REFRESH_EXECUTOR.schedule(this::refreshAsync, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background refresh, e.g. when the user signs out.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.weasis.dicom.google.api.model.StudyModel.RecordPlain;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class InstanceModel {
+
+    @JsonProperty("00080018")
+    private RecordPlain sopInstanceUID;
+
+    @JsonProperty("0020000E")
+    private RecordPlain seriesInstanceUID;
+
+    @JsonProperty("00200013")
+    private RecordPlain instanceNumber;
+
+    @JsonProperty("00280008")
+    private RecordPlain numberOfFrames;
+
+    public RecordPlain getSopInstanceUID() {
+        return sopInstanceUID;
+    }
+
+    public void setSopInstanceUID(RecordPlain sopInstanceUID) {
+        this.sopInstanceUID = sopInstanceUID;
+    }
+
+    public RecordPlain getSeriesInstanceUID() {
+        return seriesInstanceUID;
+    }
+
+    public void setSeriesInstanceUID(RecordPlain seriesInstanceUID) {
+        this.seriesInstanceUID = seriesInstanceUID;
+    }
+
+    public RecordPlain getInstanceNumber() {
+        return instanceNumber;
+    }
+
+    public void setInstanceNumber(RecordPlain instanceNumber) {
+        this.instanceNumber = instanceNumber;
+    }
+
+    public RecordPlain getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+    public void setNumberOfFrames(RecordPlain numberOfFrames) {
+        this.numberOfFrames = numberOfFrames;
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.weasis.dicom.google.api.model.StudyModel.RecordPlain;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SeriesModel {
+
+    @JsonProperty("0020000E")
+    private RecordPlain seriesInstanceUID;
+
+    @JsonProperty("00080060")
+    private RecordPlain modality;
+
+    @JsonProperty("00200011")
+    private RecordPlain seriesNumber;
+
+    @JsonProperty("00201209")
+    private RecordPlain numberOfInstances;
+
+    public RecordPlain getSeriesInstanceUID() {
+        return seriesInstanceUID;
+    }
+
+    public void setSeriesInstanceUID(RecordPlain seriesInstanceUID) {
+        this.seriesInstanceUID = seriesInstanceUID;
+    }
+
+    public RecordPlain getModality() {
+        return modality;
+    }
+
+    public void setModality(RecordPlain modality) {
+        this.modality = modality;
+    }
+
+    public RecordPlain getSeriesNumber() {
+        return seriesNumber;
+    }
+
+    public void setSeriesNumber(RecordPlain seriesNumber) {
+        this.seriesNumber = seriesNumber;
+    }
+
+    public RecordPlain getNumberOfInstances() {
+        return numberOfInstances;
+    }
+
+    public void setNumberOfInstances(RecordPlain numberOfInstances) {
+        this.numberOfInstances = numberOfInstances;
+    }
+}
@@ -56,6 +56,9 @@ public class StudyModel {
     @JsonProperty("00100030")
     private RecordPlain birthDate;
 
+    @JsonProperty("00080061")
+    private RecordPlain modalitiesInStudy;
+
     public RecordPlain getStudyInstanceUID() {
         return studyInstanceUID;
     }
@@ -144,6 +147,14 @@ public class StudyModel {
         this.birthDate = birthDate;
     }
 
+    public RecordPlain getModalitiesInStudy() {
+        return modalitiesInStudy;
+    }
+
+    public void setModalitiesInStudy(RecordPlain modalitiesInStudy) {
+        this.modalitiesInStudy = modalitiesInStudy;
+    }
+
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class RecordPlain {
         private String vr;
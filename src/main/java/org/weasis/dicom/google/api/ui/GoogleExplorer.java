@@ -17,6 +17,9 @@ package org.weasis.dicom.google.api.ui;
 import org.weasis.dicom.google.api.GoogleAPIClient;
 import org.weasis.dicom.google.api.ui.dicomstore.DicomStoreSelector;
 import org.weasis.dicom.google.explorer.DownloadManager;
+import org.weasis.dicom.google.explorer.StudyPrefetcher;
+import org.weasis.dicom.google.explorer.download.DownloadSettings;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler;
 
 import javax.swing.JPanel;
 import javax.swing.BoxLayout;
@@ -24,6 +27,8 @@ import javax.swing.Box;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static javax.swing.BoxLayout.PAGE_AXIS;
 
@@ -35,9 +40,12 @@ public class GoogleExplorer extends JPanel {
 
     private final SearchPanel searchPanel;
     private final NavigationPanel navigationPanel;
+    private final Map<String, DownloadManager.LoadGoogleDicom> activeLoads = new ConcurrentHashMap<>();
+    private final StudyPrefetcher prefetcher;
 
     public GoogleExplorer(GoogleAPIClient googleAPIClient) {
         this.googleAPIClient = googleAPIClient;
+        this.prefetcher = new StudyPrefetcher(googleAPIClient);
 
         BorderLayout layout = new BorderLayout();
 
@@ -66,17 +74,40 @@ public class GoogleExplorer extends JPanel {
     
     public void fireStudySelected(String studyId) {
         storeSelector.getCurrentStore()
-                .map(store -> GoogleAPIClient.getImageUrl(store, studyId))
-                .ifPresent(image -> {
-                	DownloadManager.getLoadingExecutor().submit(
-                        new DownloadManager.LoadGoogleDicom(image,  null, googleAPIClient, new DownloadManager.DownloadListener() {
+                .ifPresent(store -> {
+                	prefetcher.studyOpened(store, studyId,
+                	        table.getFollowingStudies(studyId, DownloadSettings.getPrefetchCount()));
+                	table.getStudy(studyId).ifPresent(study -> prefetcher.searchPriors(store, studyId,
+                	        study.getPatientId(), study.getStudyDate(), study.getModalities()));
+                	DownloadManager.LoadGoogleDicom load = new DownloadManager.LoadGoogleDicom(store, studyId, null, googleAPIClient, new DownloadManager.DownloadListener() {
 							@Override
 							public void downloadFinished() {
+								activeLoads.values().removeIf(DownloadManager.LoadGoogleDicom::isDone);
 								table.hideLoadIcon(studyId);
 							}
-						}));
+						});
+                	activeLoads.put(studyId, load);
+                	DownloadManager.getScheduler().submit(DownloadScheduler.Priority.INTERACTIVE, load);
                 	table.showLoadIcon(studyId);
                 });
     }
 
+    /**
+     * Stops prefetching the studies of the list, called when the list is cleared.
+     */
+    public void stopPrefetch() {
+        prefetcher.stop();
+    }
+
+    public boolean isStudyLoading(String studyId) {
+        return activeLoads.containsKey(studyId);
+    }
+
+    public void cancelStudyLoad(String studyId) {
+        DownloadManager.LoadGoogleDicom load = activeLoads.get(studyId);
+        if (load != null) {
+            load.cancelDownload();
+        }
+    }
+
 }
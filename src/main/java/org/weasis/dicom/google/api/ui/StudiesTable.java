@@ -16,8 +16,11 @@ package org.weasis.dicom.google.api.ui;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.explorer.Messages;
 
+import javax.swing.JMenuItem;
 import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
 import javax.swing.JTable;
 import javax.swing.JScrollPane;
 import javax.swing.ImageIcon;
@@ -34,6 +37,7 @@ import java.awt.image.ImageObserver;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Vector;
 
 public class StudiesTable extends JPanel {
@@ -84,14 +88,39 @@ public class StudiesTable extends JPanel {
                 JTable table = (JTable) mouseEvent.getSource();
                 Point point = mouseEvent.getPoint();
                 int row = table.rowAtPoint(point);
-                if (mouseEvent.getClickCount() == 2
+                if (mouseEvent.isPopupTrigger()) {
+                    showRowMenu(mouseEvent, row);
+                } else if (mouseEvent.getClickCount() == 2
                         && row >= 0) {
                     StudyView study = studies.get(row);
                     explorer.fireStudySelected(study.getStudyId());
                 }
             }
+
+            public void mouseReleased(MouseEvent mouseEvent) {
+                if (mouseEvent.isPopupTrigger()) {
+                    showRowMenu(mouseEvent, table.rowAtPoint(mouseEvent.getPoint()));
+                }
+            }
         });
     }
+
+    private void showRowMenu(MouseEvent mouseEvent, int row) {
+        if (row < 0) {
+            return;
+        }
+        table.setRowSelectionInterval(row, row);
+        String studyId = studies.get(row).getStudyId();
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem open = new JMenuItem(Messages.getString("StudiesTable.open_study")); //$NON-NLS-1$
+        open.addActionListener(e -> explorer.fireStudySelected(studyId));
+        JMenuItem cancel = new JMenuItem(Messages.getString("StudiesTable.cancel_download")); //$NON-NLS-1$
+        cancel.setEnabled(explorer.isStudyLoading(studyId));
+        cancel.addActionListener(e -> explorer.cancelStudyLoad(studyId));
+        menu.add(open);
+        menu.add(cancel);
+        menu.show(mouseEvent.getComponent(), mouseEvent.getX(), mouseEvent.getY());
+    }
     
     private void setImageObserver(JTable table) {
         TableModel model = table.getModel();
@@ -168,8 +197,29 @@ public class StudiesTable extends JPanel {
         studies.add(study);
     }
 
+    public Optional<StudyView> getStudy(String studyId) {
+        return studies.stream().filter(study -> Objects.equals(study.getStudyId(), studyId)).findFirst();
+    }
+
+    /**
+     * @return identifiers of the studies following the given one in table order.
+     */
+    public List<String> getFollowingStudies(String studyId, int count) {
+        List<String> following = new ArrayList<>();
+        for (int i = 0; i < studies.size(); i++) {
+            if (Objects.equals(studies.get(i).getStudyId(), studyId)) {
+                for (int j = i + 1; j < studies.size() && following.size() < count; j++) {
+                    following.add(studies.get(j).getStudyId());
+                }
+                break;
+            }
+        }
+        return following;
+    }
+
     public void clearTable() {
         LOGGER.info("Removing " + tableModel.getRowCount() + " records");
+        explorer.stopPrefetch();
         for (int i = tableModel.getRowCount() - 1; i >= 0; i--) {
             tableModel.removeRow(i);
         }
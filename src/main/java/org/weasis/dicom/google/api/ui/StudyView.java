@@ -16,6 +16,8 @@ package org.weasis.dicom.google.api.ui;
 
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.Collections;
+import java.util.List;
 
 public class StudyView {
 
@@ -32,6 +34,7 @@ public class StudyView {
     private String reqPhd;
     private String location;
     private LocalDate birthDate;
+    private List<String> modalities = Collections.emptyList();
 
     public String getStudyId() {
         return studyId;
@@ -136,4 +139,12 @@ public class StudyView {
     public void setBirthDate(LocalDate birthDate) {
         this.birthDate = birthDate;
     }
+
+    public List<String> getModalities() {
+        return modalities;
+    }
+
+    public void setModalities(List<String> modalities) {
+        this.modalities = modalities;
+    }
 }
@@ -106,6 +106,9 @@ public class LoadStudiesTask extends AbstractDicomSelectorTask<List<StudyView>>
             } catch (Exception ignored) {
             }
         }
+        if (model.getModalitiesInStudy() != null && model.getModalitiesInStudy().getValue() != null) {
+            view.setModalities(model.getModalitiesInStudy().getValue());
+        }
 
         return view;
     }
@@ -14,38 +14,53 @@
 
 package org.weasis.dicom.google.explorer;
 
-import org.apache.commons.fileupload.MultipartStream;
 import org.dcm4che3.data.Tag;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.api.explorer.model.DataExplorerModel;
-import org.weasis.core.api.gui.util.AppProperties;
-import org.weasis.core.api.media.MimeInspector;
 import org.weasis.core.api.media.data.*;
-import org.weasis.core.api.util.FileUtil;
 import org.weasis.core.api.util.ThreadUtil;
 import org.weasis.core.ui.editor.FileModel;
 import org.weasis.core.ui.editor.ViewerPluginBuilder;
 import org.weasis.dicom.codec.DicomMediaIO;
-import org.weasis.dicom.codec.DicomCodec;
 import org.weasis.dicom.codec.TagD;
 import org.weasis.dicom.google.api.GoogleAPIClient;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpStatusCodes;
+import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.explorer.download.CancellationToken;
+import org.weasis.dicom.google.explorer.download.DicomPart;
+import org.weasis.dicom.google.explorer.download.DownloadBudget;
+import org.weasis.dicom.google.explorer.download.DownloadMetrics;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler;
+import org.weasis.dicom.google.explorer.download.DownloadSettings;
+import org.weasis.dicom.google.explorer.download.HeaderParser;
+import org.weasis.dicom.google.explorer.download.SingleFlight;
+import org.weasis.dicom.google.explorer.download.StudyCache;
+import org.weasis.dicom.google.explorer.download.StudyImporter;
+import org.weasis.dicom.google.explorer.download.StudyRetriever;
+import org.weasis.dicom.google.explorer.download.TransferSyntax;
 import javax.swing.SwingWorker;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class DownloadManager {
 
-    static final ExecutorService LOADING_EXECUTOR = ThreadUtil.buildNewFixedThreadExecutor(2, "Google Dicom Explorer"); //$NON-NLS-1$
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(DownloadManager.class);
 
-    public static ExecutorService getLoadingExecutor() {
-        return LOADING_EXECUTOR;
+    static final ExecutorService IMPORT_EXECUTOR = ThreadUtil.buildNewFixedThreadExecutor(2, "Google Dicom Import"); //$NON-NLS-1$
+    /**
+     * Studies being downloaded by {@link StudyCache#getStudyKey(DicomStore, String) key}, a
+     * second request for the same study waits for the first one.
+     */
+    static final SingleFlight<String, List<File>> IN_FLIGHT = new SingleFlight<>();
+
+    public static DownloadScheduler getScheduler() {
+        return DownloadScheduler.getInstance();
     }
 
     public interface DownloadListener {
@@ -55,17 +70,23 @@ public class DownloadManager {
     public static class LoadGoogleDicom extends SwingWorker<Boolean, Void> {
 
         private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(LoadGoogleDicom.class);
+        private static final String PREVIEW_MARK = "[PREVIEW]"; //$NON-NLS-1$
         private final GoogleAPIClient client;
         private File[] files;
-        private final String url;
+        private final DicomStore store;
+        private final String studyId;
+        private String studyKey;
         private final FileModel dicomModel;
-        private static final Map<String, File[]> fileCache = new HashMap<>();
-        public static final File DICOM_TMP_DIR = AppProperties.buildAccessibleTempDirectory("gcp_cache"); //$NON-NLS-1$
         private DownloadListener downloadListener;
+        private final AtomicBoolean firstImageShown = new AtomicBoolean();
+        private final CancellationToken cancellation = new CancellationToken();
+        private long startTime;
+        /** Series opened from the preview must be replaced in the viewers. */
+        private volatile boolean previewShown;
 
-
-        public LoadGoogleDicom(String url, DataExplorerModel explorerModel, GoogleAPIClient client, DownloadListener listener) {
-            this.url = url;
+        public LoadGoogleDicom(DicomStore store, String studyId, DataExplorerModel explorerModel, GoogleAPIClient client, DownloadListener listener) {
+            this.store = store;
+            this.studyId = studyId;
             this.dicomModel = ViewerPluginBuilder.DefaultDataModel;
             this.client = client;
             this.downloadListener = listener;
@@ -73,26 +94,134 @@ public class DownloadManager {
 
         @Override
         protected Boolean doInBackground() throws Exception {
-            if (url == null) {
+            if (store == null || studyId == null) {
                 throw new IllegalArgumentException("invalid parameters"); //$NON-NLS-1$
             }
-            if (fileCache.containsKey(url)) {
+            startTime = System.currentTimeMillis();
+            AtomicBoolean loaded = new AtomicBoolean();
+            studyKey = StudyCache.getStudyKey(store, studyId);
+            // A prefetch of the study is cancelled when it is opened, the load resumes from its instances
+            List<File> result = IN_FLIGHT.executeOrResume(studyKey, () -> {
+                loaded.set(true);
+                return load(StudyCache.getInstance());
+            }, cancellation);
+            files = result.toArray(new File[0]);
+            if (!loaded.get()) {
+                LOGGER.info("Study {} was loaded by another request", studyId);
+                addSelectionAndnotify(files);
+            }
+            LOGGER.debug(Arrays.stream(files).map(f -> f.getName()).collect(Collectors.joining("\n")));
+            DownloadMetrics.recordTime(DownloadMetrics.STUDY_LOAD_TIME, System.currentTimeMillis() - startTime);
+            return true;
+        }
+
+        private List<File> load(StudyCache cache) throws InterruptedException {
+            Optional<List<File>> cached = cache.getStudy(studyKey);
+            if (cached.isPresent()) {
                 LOGGER.info("Loading from local cache");
-                files = fileCache.get(url);
+                addSelectionAndnotify(cached.get().toArray(new File[0]));
+                return cached.get();
+            }
+            File previewDir = DownloadSettings.isPreviewEnabled() ? loadPreview() : null;
+            boolean replaced = false;
+            try {
+                List<File> result = loadOriginals(cache);
+                replaced = true;
+                return result;
+            } finally {
+                // Without the originals, the preview stays displayed until exit
+                deletePreview(previewDir, replaced);
+            }
+        }
+
+        private List<File> loadOriginals(StudyCache cache) throws InterruptedException {
+            List<File> result;
+            if (DownloadSettings.isStreamingEnabled()) {
+                LOGGER.info("Streaming from Google Healthcare API");
+                StudyImporter importer = new StudyImporter(this::openFiles, this::isCancelled);
+                IMPORT_EXECUTOR.submit(importer);
+                try {
+                    result = downloadFiles(cache, importer::add);
+                } finally {
+                    importer.finish();
+                }
+                cache.markComplete(studyKey);
+                importer.awaitCompletion();
             } else {
                 LOGGER.info("Loading from Google Healthcare API");
-                files = downloadFiles(url);
-                fileCache.put(url, files);
+                result = downloadFiles(cache, file -> {
+                });
+                cache.markComplete(studyKey);
+                addSelectionAndnotify(result.toArray(new File[0]));
             }
-            LOGGER.debug(Arrays.stream(files).map(f -> f.getName()).collect(Collectors.joining("\n")));
+            return result;
+        }
 
-            addSelectionAndnotify(files);
-            return true;
+        /**
+         * Retrieves the middle instance of each series as lossy JPEG and opens it, each
+         * series being marked as a preview. The files are kept out of the cache and only
+         * live until the original instances have replaced them.
+         *
+         * @return directory of the preview files or null if no preview could be shown.
+         */
+        private File loadPreview() {
+            File previewDir = null;
+            try {
+                previewDir = Files.createTempDirectory("gcp_preview_").toFile(); //$NON-NLS-1$
+                StudyRetriever retriever = new StudyRetriever(client, store, studyId, previewDir, cancellation);
+                retriever.setTransferSyntax(TransferSyntax.JPEG_BASELINE);
+                List<File> preview = retriever.retrieveMiddleInstances(part -> {
+                });
+                if (!cancellation.isCancelled()) {
+                    openFiles(preview, true);
+                    previewShown = true;
+                    DownloadMetrics.recordTime(DownloadMetrics.TIME_TO_PREVIEW,
+                            System.currentTimeMillis() - startTime);
+                }
+            } catch (IOException e) {
+                // Not fatal, the original instances are downloaded anyway
+                LOGGER.info("No preview of study {}: {}", studyId, e.getMessage());
+            }
+            return previewDir;
+        }
+
+        private static void deletePreview(File previewDir, boolean now) {
+            File[] files = previewDir == null ? null : previewDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            // Registered first so that the directory is deleted after its files
+            previewDir.deleteOnExit();
+            for (File file : files) {
+                if (!now || !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+            if (now) {
+                previewDir.delete();
+            }
+        }
+
+        /**
+         * Cancels the load. Unlike {@link #cancel(boolean)} alone, this also closes the
+         * connections of the running requests so that the worker is released
+         * immediately. Instances already downloaded are kept to resume later.
+         */
+        public void cancelDownload() {
+            LOGGER.info("Cancelling download of study {}", studyId);
+            cancellation.cancel();
+            cancel(true);
+        }
+
+        public String getStudyId() {
+            return studyId;
         }
 
         @Override
         protected void done() {
             LOGGER.info("End of loading DICOM from Google Healthcare API"); //$NON-NLS-1$
+            // Cumulative since startup, including prefetches, retries and throttling
+            LOGGER.info("Download metrics:\n{}", DownloadMetrics.summary()); //$NON-NLS-1$
             downloadListener.downloadFinished();
         }
 
@@ -100,81 +229,137 @@ public class DownloadManager {
             if (file == null || file.length < 1) {
                 return;
             }
+            openFiles(Arrays.asList(file));
+        }
+
+        /**
+         * Opens downloaded instances, registering each series once with all of its
+         * instances. Files only come from {@code application/dicom} parts (see
+         * {@link DicomPart#isDicom()}), so they are handed to {@link DicomMediaIO}
+         * directly without sniffing their type first.
+         */
+        private void openFiles(List<File> files) {
+            openFiles(files, false);
+        }
+
+        private void openFiles(List<File> files, boolean preview) {
+            List<Map.Entry<String, DicomMediaIO>> parsed;
+            try {
+                parsed = HeaderParser.parse(files, this::readHeader);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Map<String, List<DicomMediaIO>> seriesMap = new LinkedHashMap<>();
+            for (Map.Entry<String, DicomMediaIO> entry : parsed) {
+                seriesMap.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entry.getValue());
+            }
 
-            for (File file1 : file) {
+            for (List<DicomMediaIO> loaders : seriesMap.values()) {
                 if (isCancelled()) {
                     LOGGER.info("Download cancelled, returning");
                     return;
                 }
+                openSeries(loaders, preview);
+            }
+        }
 
-                if (file1 == null) {
-                    continue;
-
-                } else {
-
-                    if (file1.canRead()) {
-                        if (FileUtil.isFileExtensionMatching(file1, DicomCodec.FILE_EXTENSIONS)
-                                || MimeInspector.isMatchingMimeTypeFromMagicNumber(file1, DicomMediaIO.DICOM_MIMETYPE)) {
-                            DicomMediaIO loader = new DicomMediaIO(file1);
-                            if (loader.isReadableDicom()) {
-                                ViewerPluginBuilder.openSequenceInDefaultPlugin(loader.getMediaSeries(), dicomModel, false, false);
-                            }
-                        }
-                    }
-                }
+        /**
+         * Parses the header of a file, called concurrently by {@link HeaderParser}.
+         *
+         * @return the reader keyed by Series Instance UID or null if the file is not readable.
+         */
+        private Map.Entry<String, DicomMediaIO> readHeader(File file) {
+            if (isCancelled() || file == null || !file.canRead()) {
+                return null;
             }
+            DicomMediaIO loader = new DicomMediaIO(file);
+            if (!loader.isReadableDicom()) {
+                return null;
+            }
+            String seriesUID = TagD.getTagValue(loader, Tag.SeriesInstanceUID, String.class);
+            return new AbstractMap.SimpleImmutableEntry<>(seriesUID == null ? file.getName() : seriesUID, loader);
         }
 
-        private File[] downloadFiles(String dicomUrl) {
-            try {
-                final HttpHeaders headers = new HttpHeaders();
-                headers.setAccept("multipart/related; type=application/dicom; transfer-syntax=*");
-            	final HttpResponse response = client.executeGetRequest(dicomUrl, headers);
-            	final int responseCode = response.getStatusCode();
-
-                if (responseCode == HttpStatusCodes.STATUS_CODE_OK) {
-                    String contentType = response.getContentType();
-                    //find multipart boundary of multipart/related response
-                    int indexStart = contentType.indexOf("boundary=") + 9;
-                    int indexEnd = contentType.indexOf(";", indexStart + 1);
-                    if (indexEnd == -1) {
-                        indexEnd = contentType.length() - 1;
-                    }
-                    String boundary = contentType.substring(indexStart, indexEnd);
-
-                    MultipartStream multipart = new MultipartStream(response.getContent(), boundary.getBytes());
-                    boolean nextPart = multipart.skipPreamble();
-
-                    ArrayList<File> files = new ArrayList<>();
-                    long start = System.currentTimeMillis();
-                    while (nextPart) {
-                        File outFile = File.createTempFile("gcp_", ".dcm", getDicomTmpDir()); //$NON-NLS-1$ //$NON-NLS-2$
-                        String header = multipart.readHeaders();
-
-                        try (OutputStream output = new FileOutputStream(outFile)) {
-                            multipart.readBodyData(output);
-                        }
-                        files.add(outFile);
-                        nextPart = multipart.readBoundary();
-                    }
-                    LOGGER.debug("Elapsed time: {} ", System.currentTimeMillis() - start);
-                    return files.toArray(new File[0]);
-                } else {
-                    throw new RuntimeException("Error processing HTTP request. Response code: " + responseCode);
+        private void openSeries(List<DicomMediaIO> loaders, boolean preview) {
+            // The series built by the first reader already holds its own instances
+            DicomMediaIO first = loaders.get(0);
+            MediaSeries<MediaElement> series = first.getMediaSeries();
+            Set<MediaElement> included = new HashSet<>(getMediaElements(first));
+            List<MediaElement> elements = new ArrayList<>();
+            for (DicomMediaIO loader : loaders) {
+                elements.addAll(getMediaElements(loader));
+            }
+            elements.sort(instanceNumberComparator);
+            for (MediaElement element : elements) {
+                if (!included.contains(element)) {
+                    series.addMedia(element);
                 }
-            } catch (Exception e) {
-                LOGGER.error("Error occured ", e);
-                throw new RuntimeException(e);
+            }
+            if (preview) {
+                TagW description = TagD.get(Tag.SeriesDescription);
+                Object value = series.getTagValue(description);
+                series.setTag(description, PREVIEW_MARK + (value == null ? "" : " " + value)); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            // The original series take the place of their preview in the viewers
+            ViewerPluginBuilder.openSequenceInDefaultPlugin(series, dicomModel, false, !preview && previewShown);
+            if (preview) {
+                return;
+            }
+            if (firstImageShown.compareAndSet(false, true)) {
+                long elapsed = System.currentTimeMillis() - startTime;
+                DownloadMetrics.recordTime(DownloadMetrics.TIME_TO_FIRST_IMAGE, elapsed);
+                LOGGER.info("Time to first image: {} ms", elapsed);
             }
         }
 
-        // Solves missing tmp folder problem (on Windows).
-        private static File getDicomTmpDir() {
-            if (!DICOM_TMP_DIR.exists()) {
-                LOGGER.info("DICOM tmp dir not found. Re-creating it."); //$NON-NLS-1$
-                AppProperties.buildAccessibleTempDirectory("gcp_cache"); //$NON-NLS-1$
+        private static List<MediaElement> getMediaElements(DicomMediaIO loader) {
+            MediaElement[] medias = loader.getMediaElement();
+            return medias == null ? Collections.emptyList() : Arrays.asList(medias);
+        }
+
+        private List<File> downloadFiles(StudyCache cache, Consumer<File> fileConsumer) {
+            return downloadStudy(client, store, studyId, cache, cancellation, DownloadScheduler.Priority.INTERACTIVE,
+                    fileConsumer);
+        }
+    }
+
+    /**
+     * Downloads the study into the cache. Instances left by a previous incomplete
+     * download are reused and only the missing ones are retrieved.
+     *
+     * @param priority class of the download in the {@link DownloadBudget}.
+     * @throws CancellationException if the download was cancelled.
+     */
+    static List<File> downloadStudy(GoogleAPIClient client, DicomStore store, String studyId, StudyCache cache,
+            CancellationToken cancellation, DownloadScheduler.Priority priority, Consumer<File> fileConsumer) {
+        String studyKey = StudyCache.getStudyKey(store, studyId);
+        File studyDir = cache.prepareStudy(studyKey);
+        Map<String, File> partial = cache.getPartialInstances(studyKey);
+        List<File> result = new ArrayList<>(partial.values());
+        partial.values().forEach(fileConsumer);
+        Consumer<DicomPart> partConsumer = part -> {
+            cache.addInstance(studyKey, part);
+            fileConsumer.accept(part.getFile());
+        };
+        try {
+            StudyRetriever retriever = new StudyRetriever(client, store, studyId, studyDir, cancellation, priority);
+            if (partial.isEmpty()) {
+                result.addAll(retriever.retrieve(partConsumer));
+            } else {
+                LOGGER.info("Resuming download of study {}, {} instances available", studyId, partial.size());
+                result.addAll(retriever.retrieveMissing(partial.keySet(), partConsumer));
+            }
+            return result;
+        } catch (Exception e) {
+            // Keep what has been downloaded so far for a later resume
+            cache.save();
+            if (cancellation.isCancelled()) {
+                LOGGER.info("Download of study {} cancelled", studyId);
+                throw new CancellationException();
             }
-            return DICOM_TMP_DIR;
+            LOGGER.error("Error occured ", e);
+            throw new RuntimeException(e);
         }
     }
 
@@ -0,0 +1,113 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer;
+
+import org.weasis.dicom.google.api.GoogleAPIClient;
+import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.api.model.StudyModel;
+import org.weasis.dicom.google.api.model.StudyQuery;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the earlier studies of a patient that are most relevant for comparison.
+ *
+ * <p>Studies sharing a modality with the current one come first. Within each group,
+ * studies performed before the current one come first, most recent first.
+ */
+public final class PriorStudies {
+
+    /** Maximum number of studies returned by the QIDO-RS search. */
+    static final int QUERY_LIMIT = 100;
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd"); //$NON-NLS-1$
+
+    private PriorStudies() {
+    }
+
+    /**
+     * Searches the store for the other studies of the patient.
+     *
+     * @return Study Instance UIDs of at most {@code count} priors, most relevant first.
+     * @throws Exception if the search failed.
+     */
+    public static List<String> find(GoogleAPIClient client, DicomStore store, String studyId, String patientId,
+            LocalDate studyDate, List<String> modalities, int count) throws Exception {
+        StudyQuery query = new StudyQuery();
+        query.setPatientId(patientId);
+        query.setPageSize(QUERY_LIMIT);
+        List<Candidate> candidates = new ArrayList<>();
+        for (StudyModel model : client.fetchStudies(store, query)) {
+            String uid = model.getStudyInstanceUID() == null ? null
+                    : model.getStudyInstanceUID().getFirstValue().orElse(null);
+            if (uid == null) {
+                continue;
+            }
+            List<String> priorModalities = model.getModalitiesInStudy() == null
+                    || model.getModalitiesInStudy().getValue() == null ? Collections.emptyList()
+                            : model.getModalitiesInStudy().getValue();
+            candidates.add(new Candidate(uid, parseDate(model.getStudyDate()), priorModalities));
+        }
+        return rank(candidates, studyId, studyDate, modalities).stream().limit(count).collect(Collectors.toList());
+    }
+
+    static List<String> rank(List<Candidate> candidates, String studyId, LocalDate studyDate,
+            List<String> modalities) {
+        Comparator<Candidate> order = Comparator
+                .comparing((Candidate c) -> Collections.disjoint(c.modalities, modalities))
+                .thenComparing(c -> !isBefore(c.date, studyDate))
+                .thenComparing(c -> c.date, Comparator.nullsLast(Comparator.reverseOrder()));
+        return candidates.stream()
+                .filter(c -> !Objects.equals(c.studyId, studyId))
+                .sorted(order)
+                .map(c -> c.studyId)
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isBefore(LocalDate date, LocalDate reference) {
+        return date != null && (reference == null || date.isBefore(reference));
+    }
+
+    private static LocalDate parseDate(StudyModel.RecordPlain record) {
+        if (record == null) {
+            return null;
+        }
+        try {
+            return record.getFirstValue().map(s -> LocalDate.parse(s, DATE_FORMAT)).orElse(null);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    static final class Candidate {
+        private final String studyId;
+        private final LocalDate date;
+        private final List<String> modalities;
+
+        Candidate(String studyId, LocalDate date, List<String> modalities) {
+            this.studyId = studyId;
+            this.date = date;
+            this.modalities = modalities;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.api.GoogleAPIClient;
+import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.explorer.download.CancellationToken;
+import org.weasis.dicom.google.explorer.download.DownloadMetrics;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler;
+import org.weasis.dicom.google.explorer.download.DownloadSettings;
+import org.weasis.dicom.google.explorer.download.StudyCache;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the studies that the user is likely to open next into the cache.
+ *
+ * <p>When a study is opened, the studies following it in the study list are queued at
+ * {@link DownloadScheduler.Priority#PREFETCH} priority. Prefetches that are not among
+ * them anymore are cancelled, and all of them are cancelled when the list changes.
+ *
+ * <p>The studies prefetched but not opened yet are charged against the disk budget with
+ * the size they have in the cache, including the instances of the running prefetches. A
+ * prefetch does not start when the budget is used up or when the free heap is below its
+ * minimum, and stops once its instances exceed the budget, counted as
+ * {@code prefetch.stopped}. Studies are identified by their cache key, so that the same
+ * study in two DICOM stores is prefetched and opened separately.
+ *
+ * <p>The priors of the patient of the opened study are searched with QIDO-RS and the
+ * most relevant ones, see {@link PriorStudies}, are prefetched as well.
+ *
+ * <p>A study opened while it is being prefetched cancels the prefetch, and the
+ * interactive load resumes from the instances already cached, with its own priority
+ * and streaming.
+ *
+ * <p>Opened studies are counted as {@code prefetch.hit} when they were prefetched or
+ * being prefetched and {@code prefetch.miss} otherwise. The download time spared to
+ * the user is recorded as the {@code prefetch.timeSaved} timer.
+ */
+public class StudyPrefetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StudyPrefetcher.class);
+
+    public static final String HIT = "prefetch.hit"; //$NON-NLS-1$
+    public static final String MISS = "prefetch.miss"; //$NON-NLS-1$
+    public static final String TIME_SAVED = "prefetch.timeSaved"; //$NON-NLS-1$
+    public static final String SKIPPED = "prefetch.skipped"; //$NON-NLS-1$
+    public static final String STOPPED = "prefetch.stopped"; //$NON-NLS-1$
+    public static final String PRIORS = "prefetch.priors"; //$NON-NLS-1$
+
+    /** Opened studies remembered to not prefetch them again. */
+    static final int MAX_OPENED = 256;
+
+    private final GoogleAPIClient client;
+    // All guarded by this and keyed by study key
+    /** Prefetches of the current position in the list. */
+    private final Map<String, Prefetch> prefetches = new LinkedHashMap<>();
+    /** Studies prefetched, or being prefetched, and not opened since. */
+    private final Set<String> committed = new HashSet<>();
+    private final Set<String> opened = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_OPENED;
+        }
+    });
+    private String current;
+
+    public StudyPrefetcher(GoogleAPIClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Called when the user opens a study.
+     *
+     * @param following studies following the opened one in the study list.
+     */
+    public synchronized void studyOpened(DicomStore store, String studyId, List<String> following) {
+        int count = DownloadSettings.getPrefetchCount();
+        if (count == 0 && DownloadSettings.getPriorCount() == 0) {
+            return;
+        }
+        String studyKey = StudyCache.getStudyKey(store, studyId);
+        current = studyKey;
+        // Removed first so that a study opened again becomes the most recent one
+        opened.remove(studyKey);
+        opened.add(studyKey);
+        committed.remove(studyKey);
+        Prefetch prefetch = prefetches.remove(studyKey);
+        if (prefetch != null && prefetch.started > 0) {
+            DownloadMetrics.increment(HIT);
+            long saved = prefetch.duration >= 0 ? prefetch.duration : System.currentTimeMillis() - prefetch.started;
+            DownloadMetrics.recordTime(TIME_SAVED, saved);
+        } else {
+            DownloadMetrics.increment(MISS);
+        }
+        if (prefetch != null) {
+            // A running prefetch is throttled and opens nothing, the interactive load resumes
+            // from the instances it has already cached instead
+            prefetch.cancel();
+        }
+
+        List<String> next = new ArrayList<>();
+        for (String nextId : following.subList(0, Math.min(count, following.size()))) {
+            next.add(StudyCache.getStudyKey(store, nextId));
+        }
+        Iterator<Map.Entry<String, Prefetch>> iterator = prefetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Prefetch> entry = iterator.next();
+            if (!next.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+        following.subList(0, Math.min(count, following.size())).forEach(nextId -> queue(store, nextId));
+    }
+
+    /**
+     * Searches the priors of the patient of the opened study in the background and
+     * prefetches the most relevant ones.
+     */
+    public void searchPriors(DicomStore store, String studyId, String patientId, LocalDate studyDate,
+            List<String> modalities) {
+        int count = DownloadSettings.getPriorCount();
+        if (count == 0 || patientId == null || patientId.trim().isEmpty()) {
+            return;
+        }
+        DownloadManager.getScheduler().submit(DownloadScheduler.Priority.PREFETCH, () -> {
+            try {
+                List<String> priors = PriorStudies.find(client, store, studyId, patientId, studyDate, modalities,
+                        count);
+                LOGGER.info("Prefetching {} priors of study {}", priors.size(), studyId);
+                queuePriors(store, studyId, priors);
+            } catch (Exception e) {
+                LOGGER.warn("Cannot search priors of study {}", studyId, e);
+            }
+        });
+    }
+
+    private synchronized void queuePriors(DicomStore store, String studyId, List<String> priors) {
+        if (!StudyCache.getStudyKey(store, studyId).equals(current)) {
+            // The user has already moved to another study
+            return;
+        }
+        DownloadMetrics.add(PRIORS, priors.size());
+        priors.forEach(prior -> queue(store, prior));
+    }
+
+    private void queue(DicomStore store, String studyId) {
+        String studyKey = StudyCache.getStudyKey(store, studyId);
+        if (!opened.contains(studyKey) && !prefetches.containsKey(studyKey)) {
+            Prefetch created = new Prefetch();
+            prefetches.put(studyKey, created);
+            created.future = DownloadManager.getScheduler().submit(DownloadScheduler.Priority.PREFETCH,
+                    () -> prefetch(store, studyId, created));
+        }
+    }
+
+    /**
+     * Cancels all the prefetches, e.g. when the user navigates to another study list.
+     */
+    public synchronized void stop() {
+        prefetches.values().forEach(Prefetch::cancel);
+        prefetches.clear();
+    }
+
+    private void prefetch(DicomStore store, String studyId, Prefetch prefetch) {
+        StudyCache cache = StudyCache.getInstance();
+        String studyKey = StudyCache.getStudyKey(store, studyId);
+        if (prefetch.cancellation.isCancelled() || cache.isCached(studyKey)) {
+            return;
+        }
+        if (!startWithinBudget(studyKey, cache)) {
+            LOGGER.debug("Prefetch budget exhausted, skipping study {}", studyId);
+            DownloadMetrics.increment(SKIPPED);
+            return;
+        }
+        prefetch.started = System.currentTimeMillis();
+        try {
+            DownloadManager.IN_FLIGHT.execute(studyKey, () -> {
+                List<File> result = DownloadManager.downloadStudy(client, store, studyId, cache,
+                        prefetch.cancellation, DownloadScheduler.Priority.PREFETCH, file -> {
+                            if (!prefetch.cancellation.isCancelled() && getCommittedSize(cache) > budget()) {
+                                LOGGER.info("Prefetch budget exhausted, stopping study {}", studyId);
+                                DownloadMetrics.increment(STOPPED);
+                                prefetch.cancellation.cancel();
+                            }
+                        });
+                cache.markComplete(studyKey);
+                return result;
+            });
+            prefetch.duration = System.currentTimeMillis() - prefetch.started;
+            LOGGER.info("Prefetched study {} in {} ms", studyId, prefetch.duration);
+        } catch (CancellationException e) {
+            LOGGER.debug("Prefetch of study {} cancelled", studyId);
+            prefetch.started = 0;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot prefetch study {}", studyId, e);
+            // Nothing saved for the user
+            prefetch.started = 0;
+        } finally {
+            synchronized (this) {
+                if (!opened.contains(studyKey)) {
+                    // Not displayed, the cache may evict it like any other study
+                    cache.release(studyKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Charges the study against the budget if there is room left for it.
+     */
+    private synchronized boolean startWithinBudget(String studyKey, StudyCache cache) {
+        if (opened.contains(studyKey) || getCommittedSize(cache) >= budget()) {
+            return false;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+        if (free * 100 < runtime.maxMemory() * DownloadSettings.getPrefetchMinFreeMemory()) {
+            return false;
+        }
+        committed.add(studyKey);
+        return true;
+    }
+
+    /**
+     * @return bytes cached for the studies prefetched and not opened since. Studies
+     *         evicted from the cache are not charged anymore.
+     */
+    private synchronized long getCommittedSize(StudyCache cache) {
+        long used = 0;
+        Iterator<String> iterator = committed.iterator();
+        while (iterator.hasNext()) {
+            String studyKey = iterator.next();
+            long size = cache.getStudySize(studyKey);
+            if (size == 0 && !prefetches.containsKey(studyKey)) {
+                iterator.remove();
+            }
+            used += size;
+        }
+        return used;
+    }
+
+    private static long budget() {
+        return DownloadSettings.getPrefetchDiskBudget();
+    }
+
+    private static final class Prefetch {
+        private final CancellationToken cancellation = new CancellationToken();
+        private volatile Future<?> future;
+        /** Start of the download, 0 if it has not started or failed. */
+        private volatile long started;
+        private volatile long duration = -1;
+
+        void cancel() {
+            cancellation.cancel();
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns the number of concurrent retrieve requests each DICOM store sustains, with
+ * additive increase and multiplicative decrease.
+ *
+ * <p>Requests complete in epochs of {@code limit} requests. At the end of an epoch in
+ * which the limit was reached, the limit grows by one if the throughput of the store
+ * did not drop. A {@code 429 Too Many Requests} or {@code 503 Service Unavailable}
+ * response, or a time per megabyte more than {@link #LATENCY_TOLERANCE} times the best
+ * one seen, halves the limit. The time per megabyte is measured by {@link TransferTiming},
+ * without the local waits for the budget, the bandwidth limiter and the disk. Only requests started after a decrease can cause another
+ * one, so a burst of failures of requests already in flight counts once.
+ *
+ * <p>A request waiting for a slot holds no thread. Waiting requests get a slot highest
+ * {@link Priority} first, and in order of arrival within a class, so that the requests
+ * of an opened study do not queue behind those of prefetched studies.
+ *
+ * <p>The limit of each store is published as the {@code concurrency.<store>.limit}
+ * counter of {@link DownloadMetrics} and every change is counted by its reason:
+ * {@code concurrency.<store>.increase}, {@code concurrency.<store>.throttled} and
+ * {@code concurrency.<store>.latency}.
+ */
+public class AdaptiveConcurrency {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+
+    public static final String INCREASE = "increase"; //$NON-NLS-1$
+    public static final String THROTTLED = "throttled"; //$NON-NLS-1$
+    public static final String LATENCY = "latency"; //$NON-NLS-1$
+
+    static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+    static final double BACKOFF = 0.5;
+    static final double LATENCY_TOLERANCE = 2.0;
+    private static final double BASELINE_ALPHA = 0.01;
+    private static final double RECENT_ALPHA = 0.3;
+    private static final double MEGABYTE = 1024 * 1024;
+
+    private static AdaptiveConcurrency instance;
+
+    private final int initialLimit;
+    private final int maxLimit;
+    private final Map<String, StoreLimit> stores = new ConcurrentHashMap<>();
+
+    /**
+     * @return the limits or null if adaptive concurrency is disabled.
+     */
+    public static synchronized AdaptiveConcurrency getInstance() {
+        if (instance == null && DownloadSettings.isAdaptiveConcurrency()) {
+            instance = new AdaptiveConcurrency(DownloadSettings.getRetrieveConcurrency(),
+                    DownloadSettings.getRetrieveMaxConcurrency());
+        }
+        return instance;
+    }
+
+    AdaptiveConcurrency(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.initialLimit = Math.min(this.maxLimit, Math.max(1, initialLimit));
+    }
+
+    public StoreLimit forStore(String storeName) {
+        return stores.computeIfAbsent(storeName, StoreLimit::new);
+    }
+
+    static boolean isThrottled(Exception failure) {
+        if (!(failure instanceof HttpResponseException)) {
+            return false;
+        }
+        int status = ((HttpResponseException) failure).getStatusCode();
+        return status == STATUS_CODE_TOO_MANY_REQUESTS || status == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Concurrency limit learned for one DICOM store.
+     */
+    public final class StoreLimit {
+        private final String storeName;
+        private final String metricPrefix;
+        private final Queue<Waiter> waiters = new PriorityQueue<>();
+        private long sequence;
+        private int limit;
+        private int inFlight;
+        private boolean saturated;
+        // Time per megabyte in milliseconds
+        private double baseline;
+        private double recent;
+        private long lastDecrease = Long.MIN_VALUE;
+        private long epochStart;
+        private long epochBytes;
+        private int epochCount;
+        private double lastThroughput;
+
+        StoreLimit(String storeName) {
+            this.storeName = storeName;
+            this.metricPrefix = "concurrency." + storeName; //$NON-NLS-1$
+            this.limit = initialLimit;
+            DownloadMetrics.add(metricPrefix + ".limit", initialLimit); //$NON-NLS-1$
+        }
+
+        /**
+         * Reserves a request slot. When the store is at its limit, the request waits in the
+         * queue of the store instead of on a thread.
+         *
+         * @return future completed with the start of the request, to pass to
+         *         {@link #release(long, TransferTiming, Exception)}, or with a
+         *         {@link DownloadCancelledException} if the download is cancelled while
+         *         waiting. A waiting request is completed by the thread releasing a slot, so
+         *         dependent actions should only hand the request over to an executor.
+         */
+        public CompletableFuture<Long> acquire(Priority priority, CancellationToken cancellation) {
+            Waiter waiter;
+            synchronized (this) {
+                if (waiters.isEmpty() && inFlight < limit) {
+                    take();
+                    return CompletableFuture.completedFuture(System.nanoTime());
+                }
+                waiter = new Waiter(priority, sequence++);
+                waiters.add(waiter);
+            }
+            Runnable abort = () -> {
+                boolean removed;
+                synchronized (this) {
+                    removed = waiters.remove(waiter);
+                }
+                if (removed) {
+                    waiter.future.completeExceptionally(new DownloadCancelledException());
+                }
+            };
+            cancellation.register(abort);
+            waiter.future.whenComplete((start, error) -> cancellation.unregister(abort));
+            return waiter.future;
+        }
+
+        private void take() {
+            inFlight++;
+            if (inFlight >= limit) {
+                saturated = true;
+            }
+        }
+
+        /**
+         * Ends a request and adapts the limit to its outcome.
+         *
+         * @param timing time spent waiting for the store and bytes received.
+         * @param failure error of the request, null if it succeeded.
+         */
+        public void release(long start, TransferTiming timing, Exception failure) {
+            release(start, timing.getNetworkNanos(), timing.getBytes(), failure, System.nanoTime());
+        }
+
+        void release(long start, long networkNanos, long bytes, Exception failure, long now) {
+            List<Waiter> granted;
+            synchronized (this) {
+                inFlight--;
+                adapt(start, networkNanos, bytes, failure, now);
+                granted = grant();
+            }
+            admit(granted);
+        }
+
+        private void admit(List<Waiter> granted) {
+            // Outside of the lock, completing runs the actions of the waiting requests
+            long start = System.nanoTime();
+            for (Waiter waiter : granted) {
+                if (!waiter.future.complete(start)) {
+                    // Abandoned by its caller, the slot goes to the next request
+                    List<Waiter> next;
+                    synchronized (this) {
+                        inFlight--;
+                        next = grant();
+                    }
+                    admit(next);
+                }
+            }
+        }
+
+        private List<Waiter> grant() {
+            if (waiters.isEmpty() || inFlight >= limit) {
+                return Collections.emptyList();
+            }
+            List<Waiter> granted = new ArrayList<>();
+            while (!waiters.isEmpty() && inFlight < limit) {
+                granted.add(waiters.poll());
+                take();
+            }
+            return granted;
+        }
+
+        private void adapt(long start, long networkNanos, long bytes, Exception failure, long now) {
+            if (isThrottled(failure)) {
+                decrease(start, now, THROTTLED);
+                return;
+            }
+            if (failure != null) {
+                return;
+            }
+
+            double sample = networkNanos / 1e6 * MEGABYTE / Math.max(bytes, MEGABYTE);
+            // The baseline follows the best time, drifting slowly when the network changes
+            baseline = baseline == 0 || sample < baseline ? sample : baseline + (sample - baseline) * BASELINE_ALPHA;
+            recent = recent == 0 ? sample : recent + (sample - recent) * RECENT_ALPHA;
+            if (recent > baseline * LATENCY_TOLERANCE) {
+                decrease(start, now, LATENCY);
+                return;
+            }
+
+            if (epochCount == 0) {
+                epochStart = start;
+            }
+            epochBytes += bytes;
+            epochCount++;
+            if (epochCount >= getLimit()) {
+                double throughput = epochBytes / (double) Math.max(1, now - epochStart);
+                if (saturated && throughput >= lastThroughput && getLimit() < maxLimit) {
+                    setLimit(getLimit() + 1, INCREASE);
+                }
+                lastThroughput = throughput;
+                startEpoch();
+            }
+        }
+
+        private void decrease(long start, long now, String reason) {
+            if (start < lastDecrease) {
+                // Sent before the last decrease took effect
+                return;
+            }
+            lastDecrease = now;
+            recent = 0;
+            lastThroughput = 0;
+            startEpoch();
+            setLimit(Math.max(1, (int) (limit * BACKOFF)), reason);
+        }
+
+        private void startEpoch() {
+            epochBytes = 0;
+            epochCount = 0;
+            saturated = false;
+        }
+
+        private void setLimit(int newLimit, String reason) {
+            int old = getLimit();
+            limit = newLimit;
+            DownloadMetrics.increment(metricPrefix + '.' + reason);
+            DownloadMetrics.add(metricPrefix + ".limit", newLimit - old); //$NON-NLS-1$
+            LOGGER.debug("Concurrency of store {}: {} -> {} ({})", storeName, old, newLimit, reason);
+        }
+
+        public synchronized int getLimit() {
+            return limit;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        public synchronized int getWaiting() {
+            return waiters.size();
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        private final Priority priority;
+        private final long sequence;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Waiter(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes the bandwidth of downloads with token buckets: one for the workstation, one
+ * per priority class and one per DICOM store. A read consumes tokens from every bucket
+ * that applies to it and sleeps until the slowest of them has paid back its debt.
+ *
+ * <p>Limits are read from {@link DownloadSettings} when a response starts, so changes
+ * at runtime apply to the next responses. Without any limit configured, responses are
+ * read as is. Interactive reads may burst up to
+ * {@link DownloadSettings#getBandwidthBurst()} bytes. Prefetch and background reads are
+ * held to their class limit only while interactive data is flowing: when the user is
+ * not loading anything they may use the whole workstation limit.
+ *
+ * <p>The time spent throttled is published as the {@code bandwidth.<class>.wait} timer
+ * and the bytes read under a limit as the {@code bandwidth.<class>.bytes} counter of
+ * {@link DownloadMetrics}.
+ */
+public class BandwidthLimiter {
+
+    /** Largest read charged at once, so that throttled streams stay smooth. */
+    static final int MAX_CHUNK = 64 * 1024;
+    /** Time without interactive reads after which prefetch may use idle bandwidth. */
+    static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_SLEEP_MILLIS = 100;
+
+    private static final BandwidthLimiter instance = new BandwidthLimiter();
+
+    private final TokenBucket workstation = new TokenBucket();
+    private final Map<Priority, TokenBucket> classes = new EnumMap<>(Priority.class);
+    private final Map<String, TokenBucket> stores = new ConcurrentHashMap<>();
+    private volatile boolean interactiveSeen;
+    private volatile long lastInteractive;
+
+    public static BandwidthLimiter getInstance() {
+        return instance;
+    }
+
+    BandwidthLimiter() {
+        for (Priority priority : Priority.values()) {
+            classes.put(priority, new TokenBucket());
+        }
+    }
+
+    /**
+     * Wraps the content of a response so that reading it is throttled.
+     *
+     * @param storeName name of the DICOM store serving the response.
+     * @return the stream itself when no limit is configured.
+     */
+    public InputStream wrap(InputStream in, Priority priority, String storeName, CancellationToken cancellation) {
+        Limits limits = new Limits(priority, storeName);
+        if (!limits.any) {
+            return in;
+        }
+        return new ThrottledInputStream(in, priority, storeName, limits, cancellation);
+    }
+
+    /**
+     * @return whether a limit may slow down the downloads of this class from the store.
+     */
+    public boolean isLimited(Priority priority, String storeName) {
+        return DownloadSettings.getTotalBandwidth() > 0 || DownloadSettings.getBandwidth(priority) > 0
+                || storeName != null && DownloadSettings.getStoreBandwidth(storeName) > 0;
+    }
+
+    /**
+     * Charges bytes already read and waits until the limits allow them.
+     *
+     * @throws DownloadCancelledException if the download is cancelled while waiting.
+     */
+    void consume(Priority priority, String storeName, Limits limits, long bytes, CancellationToken cancellation)
+            throws InterruptedIOException {
+        long waitNanos = reserve(priority, storeName, limits, bytes, System.nanoTime());
+        String prefix = getMetricPrefix(priority);
+        DownloadMetrics.add(prefix + ".bytes", bytes); //$NON-NLS-1$
+        if (waitNanos <= 0) {
+            return;
+        }
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        DownloadMetrics.recordTime(prefix + ".wait", waitMillis); //$NON-NLS-1$
+        long deadline = System.currentTimeMillis() + waitMillis;
+        try {
+            for (long left = waitMillis; left > 0; left = deadline - System.currentTimeMillis()) {
+                cancellation.throwIfCancelled();
+                Thread.sleep(Math.min(left, MAX_SLEEP_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling the download");
+        }
+    }
+
+    /**
+     * Reserves bytes with the limits currently configured.
+     *
+     * @return nanoseconds to wait before the bytes may be used.
+     */
+    long reserve(Priority priority, String storeName, long bytes, long now) {
+        return reserve(priority, storeName, new Limits(priority, storeName), bytes, now);
+    }
+
+    /**
+     * @return nanoseconds to wait before the bytes may be used.
+     */
+    long reserve(Priority priority, String storeName, Limits limits, long bytes, long now) {
+        long burst = limits.burst;
+        long total = limits.total;
+        long capacity = Math.max(total, burst);
+        boolean interactive = priority == Priority.INTERACTIVE;
+        // Other classes never spend the tokens kept for an interactive burst
+        long wait = workstation.reserve(bytes, total, capacity, interactive ? 0 : capacity - total, now);
+
+        boolean idle = false;
+        if (interactive) {
+            lastInteractive = now;
+            interactiveSeen = true;
+        } else {
+            idle = !interactiveSeen || now - lastInteractive > IDLE_NANOS;
+        }
+        if (!idle) {
+            long rate = limits.classRate;
+            wait = Math.max(wait, classes.get(priority).reserve(bytes, rate,
+                    interactive ? Math.max(rate, burst) : rate, 0, now));
+        }
+
+        if (storeName != null) {
+            long rate = limits.storeRate;
+            TokenBucket bucket = stores.computeIfAbsent(storeName, k -> new TokenBucket());
+            wait = Math.max(wait, bucket.reserve(bytes, rate, rate, 0, now));
+        }
+        return wait;
+    }
+
+    static String getMetricPrefix(Priority priority) {
+        return "bandwidth." + priority.name().toLowerCase(Locale.ENGLISH); //$NON-NLS-1$
+    }
+
+    /**
+     * Limits that apply to a response, read once when it starts.
+     */
+    static final class Limits {
+        private final long total;
+        private final long burst;
+        private final long classRate;
+        private final long storeRate;
+        /** Whether any limit is configured, including those of the other classes. */
+        private final boolean any;
+
+        Limits(Priority priority, String storeName) {
+            this.total = DownloadSettings.getTotalBandwidth();
+            this.burst = DownloadSettings.getBandwidthBurst();
+            this.classRate = DownloadSettings.getBandwidth(priority);
+            this.storeRate = storeName == null ? 0 : DownloadSettings.getStoreBandwidth(storeName);
+            boolean limited = total > 0 || storeRate > 0;
+            for (Priority other : Priority.values()) {
+                // Interactive reads must be seen to hold the other classes to their limit
+                limited |= DownloadSettings.getBandwidth(other) > 0;
+            }
+            this.any = limited;
+        }
+    }
+
+    /**
+     * Bucket refilled at a rate given on each use, so that limit changes take effect
+     * immediately. Reads are charged after the fact: the bucket can go into debt and the
+     * caller waits until it is paid back.
+     */
+    static final class TokenBucket {
+        private double tokens;
+        private long last;
+        private boolean started;
+
+        /**
+         * @param rate bytes per second, 0 or less for no limit.
+         * @param capacity maximum tokens accumulated while idle.
+         * @param reserved tokens the caller must leave in the bucket.
+         * @return nanoseconds to wait before the bytes may be used.
+         */
+        synchronized long reserve(long bytes, long rate, long capacity, long reserved, long now) {
+            if (rate <= 0) {
+                started = false;
+                return 0;
+            }
+            if (!started) {
+                // A new or re-enabled limit starts full
+                tokens = capacity;
+                started = true;
+            } else {
+                tokens = Math.min(capacity, tokens + (now - last) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            last = now;
+            tokens -= bytes;
+            double debt = reserved - tokens;
+            return debt <= 0 ? 0 : (long) Math.ceil(debt * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+    }
+
+    private final class ThrottledInputStream extends FilterInputStream {
+        private final Priority priority;
+        private final String storeName;
+        private final Limits limits;
+        private final CancellationToken cancellation;
+
+        ThrottledInputStream(InputStream in, Priority priority, String storeName, Limits limits,
+                CancellationToken cancellation) {
+            super(in);
+            this.priority = priority;
+            this.storeName = storeName;
+            this.limits = limits;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consume(priority, storeName, limits, 1, cancellation);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, Math.min(len, MAX_CHUNK));
+            if (n > 0) {
+                consume(priority, storeName, limits, n, cancellation);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, MAX_CHUNK));
+            if (skipped > 0) {
+                consume(priority, storeName, limits, skipped, cancellation);
+            }
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cancellation state of a download shared by all the requests it issues. Requests
+ * register an abort action, typically disconnecting their HTTP response, so that a
+ * thread blocked reading from the network is released immediately on cancellation.
+ */
+public class CancellationToken {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CancellationToken.class);
+
+    private final Set<Runnable> abortActions = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+        for (Runnable action : abortActions) {
+            abort(action);
+        }
+        abortActions.clear();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws DownloadCancelledException if the download has been cancelled.
+     */
+    public void throwIfCancelled() throws DownloadCancelledException {
+        if (cancelled) {
+            throw new DownloadCancelledException();
+        }
+    }
+
+    /**
+     * Registers an action run on cancellation. It runs immediately when the download
+     * is already cancelled.
+     */
+    public void register(Runnable abortAction) {
+        abortActions.add(abortAction);
+        if (cancelled && abortActions.remove(abortAction)) {
+            abort(abortAction);
+        }
+    }
+
+    public void unregister(Runnable abortAction) {
+        abortActions.remove(abortAction);
+    }
+
+    private static void abort(Runnable action) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            LOGGER.debug("Error while aborting download", e);
+        }
+    }
+}
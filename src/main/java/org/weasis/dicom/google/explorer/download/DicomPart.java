@@ -0,0 +1,165 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A completely downloaded part of a {@code multipart/related} WADO-RS response.
+ */
+public class DicomPart {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DicomPart.class);
+
+    public static final String CONTENT_TYPE = "content-type"; //$NON-NLS-1$
+    public static final String CONTENT_LENGTH = "content-length"; //$NON-NLS-1$
+    public static final String CONTENT_LOCATION = "content-location"; //$NON-NLS-1$
+
+    public static final String DICOM_MEDIA_TYPE = "application/dicom"; //$NON-NLS-1$
+
+    private final File file;
+    private final Map<String, String> headers;
+    private final long size;
+    private final long checksum;
+    private String seriesInstanceUID;
+    private String sopInstanceUID;
+    private boolean uidsResolved;
+
+    /**
+     * @param file file holding the part body.
+     * @param headers part headers with lower case names.
+     * @param size number of bytes of the body.
+     * @param checksum CRC32 of the body.
+     */
+    public DicomPart(File file, Map<String, String> headers, long size, long checksum) {
+        this.file = file;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Classifies the part from its {@code Content-Type} header. A part without this
+     * header is considered DICOM, as it is the only type requested.
+     *
+     * @return true if the part holds a DICOM instance.
+     */
+    public boolean isDicom() {
+        String contentType = getHeader(CONTENT_TYPE);
+        if (contentType == null) {
+            return true;
+        }
+        int index = contentType.indexOf(';');
+        String mediaType = index < 0 ? contentType : contentType.substring(0, index);
+        return DICOM_MEDIA_TYPE.equalsIgnoreCase(mediaType.trim());
+    }
+
+    public synchronized String getSeriesInstanceUID() {
+        resolveUids();
+        return seriesInstanceUID;
+    }
+
+    public synchronized String getSopInstanceUID() {
+        resolveUids();
+        return sopInstanceUID;
+    }
+
+    /**
+     * Takes UIDs from the {@code Content-Location} header when the server provides it,
+     * otherwise from the DICOM header of the file.
+     */
+    private void resolveUids() {
+        if (uidsResolved) {
+            return;
+        }
+        uidsResolved = true;
+        String location = getHeader(CONTENT_LOCATION);
+        if (location != null) {
+            seriesInstanceUID = getPathParameter(location, "/series/"); //$NON-NLS-1$
+            sopInstanceUID = getPathParameter(location, "/instances/"); //$NON-NLS-1$
+        }
+        if (seriesInstanceUID == null || sopInstanceUID == null) {
+            try (DicomInputStream dis = new DicomInputStream(file)) {
+                Attributes attributes = dis.readDataset(-1, Tag.PixelData);
+                if (attributes != null) {
+                    seriesInstanceUID = attributes.getString(Tag.SeriesInstanceUID);
+                    sopInstanceUID = attributes.getString(Tag.SOPInstanceUID);
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Cannot read UIDs of {}", file, e);
+            }
+        }
+    }
+
+    static String getPathParameter(String path, String segment) {
+        int start = path.indexOf(segment);
+        if (start < 0) {
+            return null;
+        }
+        start += segment.length();
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.substring(start) : path.substring(start, end);
+    }
+
+    /**
+     * Parses the raw header block of a part, as returned by
+     * {@link MultipartReader#readHeaders()}.
+     *
+     * @return headers with lower case names.
+     */
+    public static Map<String, String> parseHeaders(String rawHeaders) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (rawHeaders == null) {
+            return headers;
+        }
+        for (String line : rawHeaders.split("\r?\n")) { //$NON-NLS-1$
+            int index = line.indexOf(':');
+            if (index > 0) {
+                headers.put(line.substring(0, index).trim().toLowerCase(Locale.ENGLISH), line.substring(index + 1).trim());
+            }
+        }
+        return headers;
+    }
+}
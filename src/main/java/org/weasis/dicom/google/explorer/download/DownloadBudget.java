@@ -0,0 +1,159 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process wide budget of the connections used by downloads.
+ *
+ * <p>Every request retrieving pixel data holds a {@link Permit} for one connection
+ * while it runs, and waits when the budget is exhausted. Memory is bounded along with
+ * the connections, as each one reads through a buffer of fixed size, and the data not
+ * yet on disk by the buffer pool of {@link WriteBehind}.
+ * Prefetch and background requests may only use half of the budget and never start
+ * while an interactive request is waiting, so that they cannot delay the study the
+ * user is looking at.
+ *
+ * <p>The connections held by each class are published as the
+ * {@code budget.<class>.connections} counter and the time spent waiting as the
+ * {@code budget.<class>.wait} timer of {@link DownloadMetrics}.
+ */
+public class DownloadBudget {
+
+    private static DownloadBudget instance;
+
+    private final int maxConnections;
+    private final Map<Priority, Usage> usage = new EnumMap<>(Priority.class);
+    private int connections;
+
+    public static synchronized DownloadBudget getInstance() {
+        if (instance == null) {
+            instance = new DownloadBudget(DownloadSettings.getBudgetConnections());
+        }
+        return instance;
+    }
+
+    DownloadBudget(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        for (Priority priority : Priority.values()) {
+            usage.put(priority, new Usage());
+        }
+    }
+
+    /**
+     * Waits until a connection is available.
+     *
+     * @return permit to close once the request is done.
+     * @throws DownloadCancelledException if the download is cancelled while waiting.
+     */
+    public Permit acquire(Priority priority, CancellationToken cancellation) throws InterruptedIOException {
+        long start = System.currentTimeMillis();
+        Runnable wakeUp = () -> {
+            synchronized (this) {
+                notifyAll();
+            }
+        };
+        cancellation.register(wakeUp);
+        try {
+            synchronized (this) {
+                Usage classUsage = usage.get(priority);
+                classUsage.waiting++;
+                try {
+                    while (!canAcquire(priority)) {
+                        cancellation.throwIfCancelled();
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the download budget");
+                } finally {
+                    classUsage.waiting--;
+                }
+                connections++;
+                classUsage.connections++;
+            }
+        } finally {
+            cancellation.unregister(wakeUp);
+        }
+        String prefix = getMetricPrefix(priority);
+        DownloadMetrics.recordTime(prefix + ".wait", System.currentTimeMillis() - start); //$NON-NLS-1$
+        DownloadMetrics.add(prefix + ".connections", 1); //$NON-NLS-1$
+        return new Permit(priority);
+    }
+
+    private boolean canAcquire(Priority priority) {
+        if (connections >= maxConnections) {
+            return false;
+        }
+        if (priority == Priority.INTERACTIVE) {
+            return true;
+        }
+        Usage interactive = usage.get(Priority.INTERACTIVE);
+        if (interactive.waiting > 0) {
+            return false;
+        }
+        // The other half is kept for interactive requests
+        return connections - interactive.connections < Math.max(1, maxConnections / 2);
+    }
+
+    private synchronized void release(Priority priority) {
+        usage.get(priority).connections--;
+        connections--;
+        notifyAll();
+    }
+
+    public synchronized int getConnections(Priority priority) {
+        return usage.get(priority).connections;
+    }
+
+    static String getMetricPrefix(Priority priority) {
+        return "budget." + priority.name().toLowerCase(Locale.ENGLISH); //$NON-NLS-1$
+    }
+
+    private static final class Usage {
+        private int connections;
+        private int waiting;
+    }
+
+    /**
+     * Connection held by a request.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Priority priority;
+        private boolean released;
+
+        Permit(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(priority);
+            DownloadMetrics.add(getMetricPrefix(priority) + ".connections", -1); //$NON-NLS-1$
+        }
+    }
+}
@@ -0,0 +1,104 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters and timers describing download behaviour.
+ */
+public final class DownloadMetrics {
+
+    public static final String TIME_TO_FIRST_IMAGE = "study.timeToFirstImage";
+    public static final String STUDY_LOAD_TIME = "study.loadTime";
+    public static final String TIME_TO_PREVIEW = "study.timeToPreview";
+
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+    private DownloadMetrics() {
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        COUNTERS.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public static long getCounter(String name) {
+        AtomicLong counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public static void recordTime(String name, long millis) {
+        TIMERS.computeIfAbsent(name, k -> new Timer()).record(millis);
+    }
+
+    public static Timer getTimer(String name) {
+        return TIMERS.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * @return all counters and timers in a human readable form, sorted by name.
+     */
+    public static String summary() {
+        Map<String, String> values = new TreeMap<>();
+        COUNTERS.forEach((k, v) -> values.put(k, String.valueOf(v.get())));
+        TIMERS.forEach((k, v) -> values.put(k, v.toString()));
+        StringBuilder builder = new StringBuilder();
+        values.forEach((k, v) -> builder.append(k).append('=').append(v).append('\n'));
+        return builder.toString();
+    }
+
+    public static final class Timer {
+        private long count;
+        private long total;
+        private long max;
+        private long last;
+
+        synchronized void record(long millis) {
+            count++;
+            total += millis;
+            max = Math.max(max, millis);
+            last = millis;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized long getLast() {
+            return last;
+        }
+
+        public synchronized long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + count + " mean=" + getMean() + "ms max=" + max + "ms last=" + last + "ms";
+        }
+    }
+}
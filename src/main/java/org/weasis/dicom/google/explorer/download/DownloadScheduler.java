@@ -0,0 +1,201 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.ThreadUtil;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+
+/**
+ * Runs study loads according to their priority class instead of submission order.
+ *
+ * <p>Every class has its own concurrency limit, so that queued prefetch or background
+ * work can never hold all the workers. Pending tasks are dispatched highest priority
+ * first, and interactive tasks may additionally borrow workers left idle by the
+ * lower classes.
+ *
+ * <p>The number of queued tasks of each class is published as the
+ * {@code scheduler.<class>.queued} counter and the time spent in the queue as the
+ * {@code scheduler.<class>.wait} timer of {@link DownloadMetrics}.
+ */
+public class DownloadScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DownloadScheduler.class);
+
+    public enum Priority {
+        /** Study explicitly opened by the user. */
+        INTERACTIVE(2),
+        /** Study that the user is likely to open next. */
+        PREFETCH(1),
+        /** Anything else, e.g. cache maintenance. */
+        BACKGROUND(1);
+
+        private final int defaultConcurrency;
+
+        Priority(int defaultConcurrency) {
+            this.defaultConcurrency = defaultConcurrency;
+        }
+
+        public int getDefaultConcurrency() {
+            return defaultConcurrency;
+        }
+
+        public String getMetricPrefix() {
+            return "scheduler." + name().toLowerCase(Locale.ENGLISH); //$NON-NLS-1$
+        }
+    }
+
+    private static DownloadScheduler instance;
+
+    private final Map<Priority, Integer> limits = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> running = new EnumMap<>(Priority.class);
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private final int workerCount;
+    private final ExecutorService workers;
+    private long sequence;
+    private int totalRunning;
+
+    public static synchronized DownloadScheduler getInstance() {
+        if (instance == null) {
+            Map<Priority, Integer> limits = new EnumMap<>(Priority.class);
+            for (Priority priority : Priority.values()) {
+                limits.put(priority, DownloadSettings.getSchedulerConcurrency(priority));
+            }
+            instance = new DownloadScheduler(limits);
+        }
+        return instance;
+    }
+
+    DownloadScheduler(Map<Priority, Integer> limits) {
+        int count = 0;
+        for (Priority priority : Priority.values()) {
+            int limit = Math.max(priority == Priority.INTERACTIVE ? 1 : 0, limits.getOrDefault(priority, 0));
+            this.limits.put(priority, limit);
+            this.running.put(priority, 0);
+            count += limit;
+        }
+        this.workerCount = count;
+        this.workers = ThreadUtil.buildNewFixedThreadExecutor(count, "Google Dicom Explorer"); //$NON-NLS-1$
+    }
+
+    /**
+     * Queues a task with the given priority.
+     *
+     * @return future of the task. Cancelling it removes the task from the queue.
+     */
+    public Future<?> submit(Priority priority, Runnable task) {
+        RunnableFuture<?> future = task instanceof RunnableFuture ? (RunnableFuture<?>) task
+                : new FutureTask<Void>(task, null);
+        synchronized (this) {
+            queue.add(new Task(priority, sequence++, future));
+            DownloadMetrics.increment(priority.getMetricPrefix() + ".queued"); //$NON-NLS-1$
+        }
+        dispatch();
+        return future;
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        int depth = 0;
+        for (Task task : queue) {
+            if (task.priority == priority) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    public synchronized int getRunning(Priority priority) {
+        return running.get(priority);
+    }
+
+    /**
+     * Starts as many queued tasks as the class limits allow, highest priority first.
+     */
+    private synchronized void dispatch() {
+        PriorityQueue<Task> ordered = new PriorityQueue<>(queue);
+        while (!ordered.isEmpty() && totalRunning < workerCount) {
+            Task task = ordered.poll();
+            if (task.future.isDone()) {
+                // Cancelled while queued
+                remove(task);
+                continue;
+            }
+            if (!canStart(task.priority)) {
+                continue;
+            }
+            remove(task);
+            running.merge(task.priority, 1, Integer::sum);
+            totalRunning++;
+            DownloadMetrics.recordTime(task.priority.getMetricPrefix() + ".wait", //$NON-NLS-1$
+                    System.currentTimeMillis() - task.queuedTime);
+            workers.execute(() -> run(task));
+        }
+    }
+
+    private boolean canStart(Priority priority) {
+        if (running.get(priority) < limits.get(priority)) {
+            return true;
+        }
+        // Interactive work may use workers left idle by the other classes
+        return priority == Priority.INTERACTIVE;
+    }
+
+    private void remove(Task task) {
+        queue.remove(task);
+        DownloadMetrics.add(task.priority.getMetricPrefix() + ".queued", -1); //$NON-NLS-1$
+    }
+
+    private void run(Task task) {
+        try {
+            task.future.run();
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error in scheduled task", e);
+        } finally {
+            synchronized (this) {
+                running.merge(task.priority, -1, Integer::sum);
+                totalRunning--;
+            }
+            dispatch();
+        }
+    }
+
+    private static final class Task implements Comparable<Task> {
+        private final Priority priority;
+        private final long sequence;
+        private final RunnableFuture<?> future;
+        private final long queuedTime = System.currentTimeMillis();
+
+        Task(Priority priority, long sequence, RunnableFuture<?> future) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.future = future;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.weasis.core.api.gui.util.AppProperties;
+import org.weasis.dicom.google.api.model.DicomStore;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Download tuning options. Values are read from system properties (e.g. set in
+ * Weasis {@code ext-config.properties}) every time they are requested, so they can
+ * be changed at runtime.
+ */
+public final class DownloadSettings {
+
+    private static final String PREFIX = "weasis.gcp.";
+
+    /**
+     * Open instances in Weasis while the study is still downloading.
+     */
+    public static final String STREAMING = PREFIX + "download.streaming";
+
+    /**
+     * Read the structure of the study from WADO-RS metadata before retrieving it by instance.
+     * It orders the retrieval and replaces the QIDO-RS listings, the series are still laid
+     * out from the downloaded instances.
+     */
+    public static final String METADATA_FIRST = PREFIX + "retrieve.metadata";
+
+    /**
+     * Open a lossy JPEG preview of each series before downloading the original instances.
+     */
+    public static final String PREVIEW = PREFIX + "download.preview";
+
+    /**
+     * Retrieval granularity: {@code study}, {@code series} or {@code instance}.
+     */
+    public static final String RETRIEVE_MODE = PREFIX + "retrieve.mode";
+
+    /**
+     * Number of concurrent WADO-RS requests, read once at startup.
+     */
+    public static final String RETRIEVE_CONCURRENCY = PREFIX + "retrieve.concurrency";
+
+    /**
+     * Learn the number of concurrent WADO-RS requests of each DICOM store, starting
+     * from {@link #RETRIEVE_CONCURRENCY}. Read once at startup.
+     */
+    public static final String RETRIEVE_ADAPTIVE = PREFIX + "retrieve.adaptive";
+
+    /**
+     * Maximum number of concurrent WADO-RS requests with adaptive concurrency, read
+     * once at startup.
+     */
+    public static final String RETRIEVE_MAX_CONCURRENCY = PREFIX + "retrieve.maxConcurrency";
+
+    /**
+     * Directory of the persistent study cache.
+     */
+    public static final String CACHE_DIR = PREFIX + "cache.dir";
+
+    /**
+     * Size quota of the study cache in megabytes.
+     */
+    public static final String CACHE_SIZE = PREFIX + "cache.size";
+
+    /**
+     * Prefix of the number of studies of a priority class loaded concurrently, e.g.
+     * {@code weasis.gcp.scheduler.interactive}. Read once at startup.
+     */
+    public static final String SCHEDULER_CONCURRENCY = PREFIX + "scheduler.";
+
+    /**
+     * Number of threads parsing DICOM headers during import, read once at startup.
+     */
+    public static final String PARSE_THREADS = PREFIX + "parse.threads";
+
+    /**
+     * Write downloaded parts to disk on dedicated writer threads.
+     */
+    public static final String WRITE_BEHIND = PREFIX + "write.behind";
+
+    /**
+     * Number of writer threads, read once at startup.
+     */
+    public static final String WRITE_THREADS = PREFIX + "write.threads";
+
+    /**
+     * Number of write buffers, bounding the memory of data not yet on disk. Read once
+     * at startup.
+     */
+    public static final String WRITE_BUFFERS = PREFIX + "write.buffers";
+
+    /**
+     * Size of a write buffer in kilobytes, read once at startup.
+     */
+    public static final String WRITE_BUFFER_SIZE = PREFIX + "write.bufferSize";
+
+    /**
+     * Transfer syntax requested from DICOM stores: {@code any}, {@code explicit},
+     * {@code j2k}, {@code jpegls} or {@code auto}. Can be overridden per store by
+     * appending {@code .<store name>}.
+     */
+    public static final String TRANSFER_SYNTAX = PREFIX + "transferSyntax";
+
+    /**
+     * Throughput in Mbit/s below which {@code auto} requests compressed data.
+     */
+    public static final String SLOW_LINK = PREFIX + "transferSyntax.slowLink";
+
+    /**
+     * Number of studies following the opened one in the study list that are downloaded
+     * in the background, 0 to disable.
+     */
+    public static final String PREFETCH_COUNT = PREFIX + "prefetch.count";
+
+    /**
+     * Number of priors of the patient of the opened study that are downloaded in the
+     * background, 0 to disable.
+     */
+    public static final String PREFETCH_PRIORS = PREFIX + "prefetch.priors";
+
+    /**
+     * Disk space in megabytes that prefetched studies not opened yet may use.
+     */
+    public static final String PREFETCH_DISK_BUDGET = PREFIX + "prefetch.diskBudget";
+
+    /**
+     * Percentage of the maximum heap that must be free to start a prefetch.
+     */
+    public static final String PREFETCH_MIN_FREE_MEMORY = PREFIX + "prefetch.minFreeMemory";
+
+    /**
+     * Maximum number of concurrent download connections.
+     */
+    public static final String BUDGET_CONNECTIONS = PREFIX + "budget.connections";
+
+    /**
+     * Prefix of the bandwidth limits in Mbit/s: {@code weasis.gcp.bandwidth.total} for
+     * the workstation, {@code weasis.gcp.bandwidth.<class>} per priority class and
+     * {@code weasis.gcp.bandwidth.store.<store name>} per DICOM store. 0 means no limit.
+     */
+    public static final String BANDWIDTH = PREFIX + "bandwidth.";
+
+    /**
+     * Bytes in megabytes that interactive downloads may read above their limit after an
+     * idle period.
+     */
+    public static final String BANDWIDTH_BURST = BANDWIDTH + "burst";
+
+    /**
+     * Attempts of a GET request to the Google Cloud APIs, including the first one.
+     */
+    public static final String RETRY_ATTEMPTS = PREFIX + "retry.attempts";
+
+    /**
+     * Maximum delay in milliseconds before the first retry, doubled for each next one.
+     */
+    public static final String RETRY_BASE_DELAY = PREFIX + "retry.baseDelay";
+
+    /**
+     * Maximum delay in milliseconds before a retry. A server asking to wait longer is
+     * not retried.
+     */
+    public static final String RETRY_MAX_DELAY = PREFIX + "retry.maxDelay";
+
+    /**
+     * Consecutive transient failures after which requests to an endpoint are suspended,
+     * read when the endpoint is first used.
+     */
+    public static final String BREAKER_THRESHOLD = PREFIX + "breaker.threshold";
+
+    /**
+     * Time in milliseconds requests to a failing endpoint are suspended, read when the
+     * endpoint is first used.
+     */
+    public static final String BREAKER_OPEN_TIME = PREFIX + "breaker.openTime";
+
+    /**
+     * Send a duplicate of slow QIDO-RS queries and take the first response, read once at
+     * startup.
+     */
+    public static final String HEDGE = PREFIX + "hedge.enabled";
+
+    /**
+     * Percentile of the learned query latency after which a duplicate is sent, read once
+     * at startup.
+     */
+    public static final String HEDGE_PERCENTILE = PREFIX + "hedge.percentile";
+
+    /**
+     * Maximum percentage of queries that are duplicated, read once at startup.
+     */
+    public static final String HEDGE_BUDGET = PREFIX + "hedge.budget";
+
+    private DownloadSettings() {
+    }
+
+    public static boolean isStreamingEnabled() {
+        return getBoolean(STREAMING, true);
+    }
+
+    public static boolean isMetadataFirst() {
+        return getBoolean(METADATA_FIRST, false);
+    }
+
+    public static boolean isPreviewEnabled() {
+        return getBoolean(PREVIEW, false);
+    }
+
+    public static StudyRetriever.Mode getRetrieveMode() {
+        String value = System.getProperty(RETRIEVE_MODE);
+        if (value != null) {
+            try {
+                return StudyRetriever.Mode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                // Fall back to default
+            }
+        }
+        return StudyRetriever.Mode.SERIES;
+    }
+
+    public static int getRetrieveConcurrency() {
+        return Math.max(1, getInt(RETRIEVE_CONCURRENCY, 4));
+    }
+
+    public static boolean isAdaptiveConcurrency() {
+        return getBoolean(RETRIEVE_ADAPTIVE, true);
+    }
+
+    public static int getRetrieveMaxConcurrency() {
+        return Math.max(getRetrieveConcurrency(), getInt(RETRIEVE_MAX_CONCURRENCY, 16));
+    }
+
+    public static File getCacheDir() {
+        String value = System.getProperty(CACHE_DIR);
+        if (value == null || value.trim().isEmpty()) {
+            // Follows the Weasis profile, e.g. of a portable installation
+            return new File(AppProperties.WEASIS_PATH, "gcp_cache"); //$NON-NLS-1$
+        }
+        return new File(value.trim());
+    }
+
+    public static long getCacheMaxSize() {
+        return Math.max(0, getLong(CACHE_SIZE, 4096)) * 1024 * 1024;
+    }
+
+    public static String getTransferSyntaxPolicy(DicomStore store) {
+        String value = System.getProperty(TRANSFER_SYNTAX + '.' + store.getName());
+        if (value == null) {
+            value = System.getProperty(TRANSFER_SYNTAX, "any"); //$NON-NLS-1$
+        }
+        return value;
+    }
+
+    public static int getSlowLinkThreshold() {
+        return getInt(SLOW_LINK, 50);
+    }
+
+    public static int getPrefetchCount() {
+        return Math.max(0, getInt(PREFETCH_COUNT, 0));
+    }
+
+    public static int getPriorCount() {
+        return Math.max(0, getInt(PREFETCH_PRIORS, 0));
+    }
+
+    public static long getPrefetchDiskBudget() {
+        return Math.max(0, getLong(PREFETCH_DISK_BUDGET, 1024)) * 1024 * 1024;
+    }
+
+    public static int getPrefetchMinFreeMemory() {
+        return Math.min(100, Math.max(0, getInt(PREFETCH_MIN_FREE_MEMORY, 25)));
+    }
+
+    public static int getBudgetConnections() {
+        return Math.max(1, getInt(BUDGET_CONNECTIONS, 16));
+    }
+
+    /**
+     * @return bytes per second, 0 for no limit.
+     */
+    public static long getTotalBandwidth() {
+        return getBandwidth(BANDWIDTH + "total"); //$NON-NLS-1$
+    }
+
+    /**
+     * @return bytes per second, 0 for no limit.
+     */
+    public static long getBandwidth(DownloadScheduler.Priority priority) {
+        return getBandwidth(BANDWIDTH + priority.name().toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return bytes per second, 0 for no limit.
+     */
+    public static long getStoreBandwidth(String storeName) {
+        return getBandwidth(BANDWIDTH + "store." + storeName); //$NON-NLS-1$
+    }
+
+    public static long getBandwidthBurst() {
+        return Math.max(0, getLong(BANDWIDTH_BURST, 8)) * 1024 * 1024;
+    }
+
+    private static long getBandwidth(String key) {
+        // Mbit/s to bytes per second
+        return Math.max(0, getLong(key, 0)) * 1000 * 1000 / 8;
+    }
+
+    public static int getRetryAttempts() {
+        return Math.max(1, getInt(RETRY_ATTEMPTS, 4));
+    }
+
+    public static long getRetryBaseDelay() {
+        return Math.max(0, getLong(RETRY_BASE_DELAY, 500));
+    }
+
+    public static long getRetryMaxDelay() {
+        return Math.max(0, getLong(RETRY_MAX_DELAY, 10000));
+    }
+
+    public static int getBreakerThreshold() {
+        return Math.max(1, getInt(BREAKER_THRESHOLD, 5));
+    }
+
+    public static long getBreakerOpenTime() {
+        return Math.max(0, getLong(BREAKER_OPEN_TIME, 30000));
+    }
+
+    public static boolean isHedgingEnabled() {
+        return getBoolean(HEDGE, false);
+    }
+
+    public static int getHedgePercentile() {
+        return Math.min(99, Math.max(50, getInt(HEDGE_PERCENTILE, 95)));
+    }
+
+    public static int getHedgeBudget() {
+        return Math.min(100, Math.max(0, getInt(HEDGE_BUDGET, 5)));
+    }
+
+    public static int getSchedulerConcurrency(DownloadScheduler.Priority priority) {
+        return Math.max(0, getInt(SCHEDULER_CONCURRENCY + priority.name().toLowerCase(Locale.ENGLISH),
+                priority.getDefaultConcurrency()));
+    }
+
+    public static int getParseThreads() {
+        return Math.max(1, getInt(PARSE_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static boolean isWriteBehindEnabled() {
+        return getBoolean(WRITE_BEHIND, true);
+    }
+
+    public static int getWriteThreads() {
+        return Math.max(1, getInt(WRITE_THREADS, 2));
+    }
+
+    public static int getWriteBuffers() {
+        return Math.max(2, getInt(WRITE_BUFFERS, 64));
+    }
+
+    public static int getWriteBufferSize() {
+        return Math.max(4, getInt(WRITE_BUFFER_SIZE, 256)) * 1024;
+    }
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.weasis.core.api.util.ThreadUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Parses the headers of downloaded instances on a bounded pool so that large
+ * studies use all cores. Results are returned in the order of the input files,
+ * whatever the order in which parsing completes.
+ */
+public final class HeaderParser {
+
+    public static final String PARSE_TIME = "import.parseTime";
+
+    private static final ExecutorService PARSE_EXECUTOR = ThreadUtil.buildNewFixedThreadExecutor(
+            DownloadSettings.getParseThreads(), "Google Dicom Parser"); //$NON-NLS-1$
+
+    private HeaderParser() {
+    }
+
+    /**
+     * Parses files on the shared parser pool.
+     *
+     * @see #parse(List, Function, ExecutorService)
+     */
+    public static <R> List<R> parse(List<File> files, Function<File, R> parser) throws InterruptedException {
+        return parse(files, parser, PARSE_EXECUTOR);
+    }
+
+    /**
+     * Parses files concurrently.
+     *
+     * @param files files to parse.
+     * @param parser returns the parsed file, or null if it cannot be read.
+     * @param executor pool running the parser.
+     * @return non null results in the order of {@code files}.
+     * @throws InterruptedException if interrupted while waiting, pending work is cancelled.
+     */
+    public static <R> List<R> parse(List<File> files, Function<File, R> parser, ExecutorService executor)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Callable<R>> tasks = new ArrayList<>(files.size());
+        for (File file : files) {
+            tasks.add(() -> parser.apply(file));
+        }
+        List<Future<R>> futures = executor.invokeAll(tasks);
+        List<R> results = new ArrayList<>(futures.size());
+        for (Future<R> future : futures) {
+            try {
+                R result = future.get();
+                if (result != null) {
+                    results.add(result);
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Cannot parse DICOM header", e.getCause());
+            }
+        }
+        DownloadMetrics.recordTime(PARSE_TIME, System.currentTimeMillis() - start);
+        return results;
+    }
+}
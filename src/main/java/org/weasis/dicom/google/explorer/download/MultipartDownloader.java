@@ -0,0 +1,270 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.api.GoogleAPIClient;
+import org.weasis.dicom.google.api.RetryPolicy;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Retrieves a WADO-RS resource (study, series or instance) and writes every part
+ * of the {@code multipart/related} response to its own temporary file.
+ */
+public class MultipartDownloader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultipartDownloader.class);
+
+    private final GoogleAPIClient client;
+    private final String storeName;
+    private final File targetDir;
+    private final CancellationToken cancellation;
+    private final Priority priority;
+
+    /**
+     * @param storeName name of the DICOM store, for its {@link BandwidthLimiter} limit.
+     */
+    public MultipartDownloader(GoogleAPIClient client, String storeName, File targetDir,
+            CancellationToken cancellation, Priority priority) {
+        this.client = client;
+        this.storeName = storeName;
+        this.targetDir = targetDir;
+        this.cancellation = cancellation;
+        this.priority = priority;
+    }
+
+    /**
+     * Downloads all instances of the multipart response to temporary files.
+     *
+     * @param dicomUrl WADO-RS URL.
+     * @param transferSyntax requested transfer syntax.
+     * @param partConsumer receives each part as soon as it has been fully written.
+     * @return downloaded files.
+     * @throws IOException if the request failed or the response could not be read. Parts
+     *                     completed before the failure have already been passed to the consumer.
+     * @throws DownloadCancelledException if the download was cancelled. The connection is
+     *                     closed immediately and the part being written is deleted.
+     */
+    public List<File> download(String dicomUrl, TransferSyntax transferSyntax, Consumer<DicomPart> partConsumer)
+            throws IOException {
+        return download(dicomUrl, transferSyntax, partConsumer, new TransferTiming());
+    }
+
+    /**
+     * Downloads all instances like {@link #download(String, TransferSyntax, Consumer)}.
+     *
+     * @param timing receives the time spent waiting for the store.
+     */
+    public List<File> download(String dicomUrl, TransferSyntax transferSyntax, Consumer<DicomPart> partConsumer,
+            TransferTiming timing) throws IOException {
+        cancellation.throwIfCancelled();
+        try (DownloadBudget.Permit permit = DownloadBudget.getInstance().acquire(priority, cancellation)) {
+            return doDownload(dicomUrl, transferSyntax, partConsumer, timing);
+        }
+    }
+
+    private List<File> doDownload(String dicomUrl, TransferSyntax transferSyntax, Consumer<DicomPart> partConsumer,
+            TransferTiming timing) throws IOException {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(transferSyntax.getAccept());
+        long requestStart = System.nanoTime();
+        // StudyRetriever retries rejected requests once the slot and the permit are released
+        final HttpResponse response;
+        try {
+            response = client.executeGetRequest(dicomUrl, headers, RetryPolicy.NONE);
+        } finally {
+            timing.addNetworkTime(System.nanoTime() - requestStart);
+        }
+        // Closing the connection unblocks the thread reading the response
+        Runnable abort = () -> {
+            try {
+                response.disconnect();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot disconnect {}", dicomUrl, e);
+            }
+        };
+        cancellation.register(abort);
+        try {
+            final int responseCode = response.getStatusCode();
+            if (responseCode != HttpStatusCodes.STATUS_CODE_OK) {
+                throw new IOException("Error processing HTTP request. Response code: " + responseCode);
+            }
+            String boundary = getBoundary(response.getContentType());
+            MultipartReader multipart = new MultipartReader(BandwidthLimiter.getInstance().wrap(
+                    timing.wrap(response.getContent()), priority, storeName, cancellation),
+                    boundary.getBytes(StandardCharsets.ISO_8859_1));
+            boolean nextPart = multipart.skipPreamble();
+
+            List<File> files = new ArrayList<>();
+            Deque<CompletableFuture<DicomPart>> pending = new ArrayDeque<>();
+            long start = System.currentTimeMillis();
+            boolean completed = false;
+            try {
+                while (nextPart) {
+                    cancellation.throwIfCancelled();
+                    Map<String, String> partHeaders = DicomPart.parseHeaders(multipart.readHeaders());
+                    pending.add(readPart(multipart, partHeaders));
+                    // Hand over the parts already on disk without waiting for the others
+                    acceptParts(pending, false, dicomUrl, files, partConsumer);
+                    nextPart = multipart.readBoundary();
+                }
+                completed = true;
+            } finally {
+                // Parts read before a failure are still completed and handed over
+                try {
+                    acceptParts(pending, true, dicomUrl, files, partConsumer);
+                } catch (IOException e) {
+                    if (completed) {
+                        throw e;
+                    }
+                    LOGGER.debug("Cannot write part of {}", dicomUrl, e);
+                }
+            }
+            LOGGER.debug("Elapsed time: {} ", System.currentTimeMillis() - start);
+            return files;
+        } catch (IOException e) {
+            if (cancellation.isCancelled()) {
+                throw new DownloadCancelledException();
+            }
+            throw e;
+        } finally {
+            cancellation.unregister(abort);
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Passes completed parts to the consumer in the order of the response.
+     *
+     * @param wait wait for all the pending parts instead of only taking those already
+     *             written.
+     */
+    private static void acceptParts(Deque<CompletableFuture<DicomPart>> pending, boolean wait, String dicomUrl,
+            List<File> files, Consumer<DicomPart> partConsumer) throws IOException {
+        IOException failure = null;
+        while (!pending.isEmpty() && (wait || pending.peek().isDone())) {
+            DicomPart part;
+            try {
+                part = pending.poll().join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException("Cannot write part", e.getCause());
+                }
+                continue;
+            }
+            if (part.isDicom()) {
+                files.add(part.getFile());
+                partConsumer.accept(part);
+            } else {
+                LOGGER.warn("Skipping part of type {} from {}", part.getHeader(DicomPart.CONTENT_TYPE), dicomUrl);
+                if (!part.getFile().delete()) {
+                    LOGGER.warn("Cannot delete {}", part.getFile());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads the body of the current part. With write-behind enabled the body is only
+     * queued to a writer thread, otherwise it is written before returning.
+     *
+     * @return completed once the part is entirely on disk.
+     */
+    private CompletableFuture<DicomPart> readPart(MultipartReader multipart, Map<String, String> partHeaders)
+            throws IOException {
+        File outFile = File.createTempFile("gcp_", ".dcm", targetDir); //$NON-NLS-1$ //$NON-NLS-2$
+        WriteBehind writeBehind = WriteBehind.getInstance();
+        CRC32 crc = new CRC32();
+        if (writeBehind != null) {
+            WriteBehind.PartChannel channel = writeBehind.open(outFile);
+            try {
+                long size = multipart.readBodyData(channel, crc);
+                checkLength(partHeaders, size);
+                return channel.commit().thenApply(v -> new DicomPart(outFile, partHeaders, size, crc.getValue()));
+            } finally {
+                // Discards the file unless committed
+                channel.close();
+            }
+        }
+
+        boolean completed = false;
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE)) {
+                size = multipart.readBodyData(channel, crc);
+            }
+            checkLength(partHeaders, size);
+            completed = true;
+            return CompletableFuture.completedFuture(new DicomPart(outFile, partHeaders, size, crc.getValue()));
+        } finally {
+            if (!completed && !outFile.delete()) {
+                LOGGER.warn("Cannot delete partial file {}", outFile);
+            }
+        }
+    }
+
+    private static void checkLength(Map<String, String> partHeaders, long size) throws IOException {
+        String contentLength = partHeaders.get(DicomPart.CONTENT_LENGTH);
+        try {
+            if (contentLength != null && Long.parseLong(contentLength.trim()) != size) {
+                throw new IOException("Truncated part: expected " + contentLength + " bytes, received " + size);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid part length", e);
+        }
+    }
+
+    /**
+     * Finds multipart boundary of multipart/related response.
+     */
+    static String getBoundary(String contentType) throws IOException {
+        if (contentType == null || !contentType.contains("boundary=")) {
+            throw new IOException("Not a multipart response: " + contentType);
+        }
+        int indexStart = contentType.indexOf("boundary=") + 9;
+        int indexEnd = contentType.indexOf(";", indexStart + 1);
+        if (indexEnd == -1) {
+            indexEnd = contentType.length();
+        }
+        String boundary = contentType.substring(indexStart, indexEnd).trim();
+        if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary;
+    }
+}
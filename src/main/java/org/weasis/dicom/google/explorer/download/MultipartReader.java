@@ -0,0 +1,251 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Streaming reader of {@code multipart/related} DICOMweb responses, used instead
+ * of commons-fileupload {@code MultipartStream}. That parser was designed for form
+ * uploads: it reads through a 4 KB buffer and copies every body byte through an
+ * intermediate array before it reaches the output stream.
+ *
+ * <p>This reader fills one large buffer directly from the network, finds the part
+ * delimiter with a Boyer-Moore-Horspool search and hands slices of the same buffer
+ * to a {@link WritableByteChannel}, without an intermediate array. The buffer is on
+ * the heap, so the channel still copies the bytes once: write-behind into its pooled
+ * buffers, a {@code FileChannel} into a temporary direct buffer.
+ * The method names follow {@code MultipartStream}.
+ */
+public class MultipartReader {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final byte[] HEADER_SEPARATOR = {'\r', '\n', '\r', '\n'};
+
+    private final InputStream input;
+    /** {@code CRLF--boundary}, the body of a part ends just before it. */
+    private final byte[] delimiter;
+    private final int[] shift = new int[256];
+    private final byte[] buffer;
+    private int head;
+    private int tail;
+    private boolean eof;
+
+    public MultipartReader(InputStream input, byte[] boundary) {
+        this(input, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MultipartReader(InputStream input, byte[] boundary, int bufferSize) {
+        this.input = input;
+        this.delimiter = new byte[boundary.length + 4];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        delimiter[2] = '-';
+        delimiter[3] = '-';
+        System.arraycopy(boundary, 0, delimiter, 4, boundary.length);
+        if (bufferSize < 2 * delimiter.length + HEADER_SEPARATOR.length) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+        }
+        this.buffer = new byte[bufferSize];
+
+        Arrays.fill(shift, delimiter.length);
+        for (int i = 0; i < delimiter.length - 1; i++) {
+            shift[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+        }
+        // The first boundary may start the stream without a preceding CRLF
+        buffer[tail++] = '\r';
+        buffer[tail++] = '\n';
+    }
+
+    /**
+     * Skips the content preceding the first boundary.
+     *
+     * @return true if a part follows, false if the response has no parts.
+     */
+    public boolean skipPreamble() throws IOException {
+        int index;
+        while ((index = indexOf(delimiter, head)) < 0) {
+            // Keep the bytes that may start the delimiter
+            head = Math.max(head, tail - delimiter.length + 1);
+            if (!fill()) {
+                throw new EOFException("No multipart boundary found");
+            }
+        }
+        head = index;
+        return readBoundary();
+    }
+
+    /**
+     * Consumes the delimiter at the current position.
+     *
+     * @return true if another part follows, false after the closing delimiter.
+     */
+    public boolean readBoundary() throws IOException {
+        require(delimiter.length + 2);
+        head += delimiter.length;
+        byte b1 = buffer[head];
+        byte b2 = buffer[head + 1];
+        head += 2;
+        if (b1 == '-' && b2 == '-') {
+            return false;
+        }
+        if (b1 == '\r' && b2 == '\n') {
+            return true;
+        }
+        // Transport padding is allowed after the boundary
+        head -= 2;
+        while (true) {
+            require(2);
+            if (buffer[head] == '\r' && buffer[head + 1] == '\n') {
+                head += 2;
+                return true;
+            }
+            if (buffer[head] != ' ' && buffer[head] != '\t') {
+                throw new IOException("Invalid multipart boundary");
+            }
+            head++;
+        }
+    }
+
+    /**
+     * Reads the header block of the current part.
+     *
+     * @return raw headers, lines separated by CRLF.
+     */
+    public String readHeaders() throws IOException {
+        // A part without headers starts directly with the empty line
+        require(2);
+        if (buffer[head] == '\r' && buffer[head + 1] == '\n') {
+            head += 2;
+            return "";
+        }
+        int index;
+        while ((index = indexOf(HEADER_SEPARATOR, head)) < 0) {
+            if (tail - head > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart headers exceed " + MAX_HEADER_SIZE + " bytes");
+            }
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart headers");
+            }
+        }
+        String headers = new String(buffer, head, index - head + 2, StandardCharsets.ISO_8859_1);
+        head = index + HEADER_SEPARATOR.length;
+        return headers;
+    }
+
+    /**
+     * Writes the body of the current part to the channel.
+     *
+     * @param channel receives the body, slices of the internal buffer are passed as is.
+     * @param checksum updated with the body, may be null.
+     * @return number of bytes of the body.
+     */
+    public long readBodyData(WritableByteChannel channel, Checksum checksum) throws IOException {
+        long size = 0;
+        while (true) {
+            int index = indexOf(delimiter, head);
+            int end = index >= 0 ? index : tail - delimiter.length + 1;
+            if (end > head) {
+                write(channel, checksum, end - head);
+                size += end - head;
+                head = end;
+            }
+            if (index >= 0) {
+                return size;
+            }
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart body");
+            }
+        }
+    }
+
+    private void write(WritableByteChannel channel, Checksum checksum, int length) throws IOException {
+        if (checksum != null) {
+            checksum.update(buffer, head, length);
+        }
+        ByteBuffer slice = ByteBuffer.wrap(buffer, head, length);
+        while (slice.hasRemaining()) {
+            channel.write(slice);
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search of the pattern in the buffered bytes.
+     *
+     * @return start of the pattern or -1.
+     */
+    private int indexOf(byte[] pattern, int from) {
+        int last = pattern.length - 1;
+        int[] table = pattern == delimiter ? shift : null;
+        int i = from;
+        while (i + last < tail) {
+            int j = last;
+            while (j >= 0 && buffer[i + j] == pattern[j]) {
+                j--;
+            }
+            if (j < 0) {
+                return i;
+            }
+            i += table == null ? 1 : table[buffer[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Ensures that at least {@code count} bytes are buffered after the current position.
+     */
+    private void require(int count) throws IOException {
+        while (tail - head < count) {
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart stream");
+            }
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more data.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        if (tail == buffer.length) {
+            throw new IOException("Multipart buffer full");
+        }
+        int read = input.read(buffer, tail, buffer.length - tail);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        tail += read;
+        return true;
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed thread pool running queued tasks highest {@link Priority} first, and in
+ * submission order within a class, so that the requests of an opened study do not wait
+ * behind those of prefetched studies.
+ */
+class PriorityExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    PriorityExecutor(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, name + '-' + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queues a task with the given priority.
+     *
+     * @return future of the task. Cancelling a queued task keeps it from running.
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> task) {
+        PriorityTask<T> future = new PriorityTask<>(task, priority, sequence.getAndIncrement());
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Queues a task with the given priority, for callers tracking its outcome themselves.
+     */
+    public void execute(Priority priority, Runnable task) {
+        submit(priority, Executors.callable(task));
+    }
+
+    private static final class PriorityTask<T> extends FutureTask<T> implements Comparable<PriorityTask<?>> {
+        private final Priority priority;
+        private final long sequence;
+
+        PriorityTask(Callable<T> task, Priority priority, long sequence) {
+            super(task);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PriorityTask<?> other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
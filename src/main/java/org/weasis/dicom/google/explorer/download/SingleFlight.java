@@ -0,0 +1,100 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Registry of in-flight operations. Concurrent callers asking for the same key
+ * share the result of the first caller instead of starting the work again.
+ *
+ * @param <K> key type.
+ * @param <V> result type.
+ */
+public class SingleFlight<K, V> {
+
+    public static final String JOINED = "singleFlight.joined";
+    public static final String RESUMED = "singleFlight.resumed";
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the loader in the calling thread unless an operation with the same key is
+     * already running, in which case its result is awaited and returned.
+     *
+     * @param key operation key.
+     * @param loader work to run when no operation with the same key is in flight.
+     * @return result of the loader of the first caller.
+     * @throws Exception thrown by the loader, or {@link InterruptedException} if the
+     *                   wait was interrupted.
+     */
+    public V execute(K key, Callable<V> loader) throws Exception {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            DownloadMetrics.increment(JOINED);
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        V value;
+        try {
+            value = loader.call();
+        } catch (Exception | Error e) {
+            // Removed first, so that a caller woken up by the failure cannot join it again
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, created);
+        created.complete(value);
+        return value;
+    }
+
+    /**
+     * Like {@link #execute(Object, Callable)}, but when the operation joined is cancelled
+     * by its owner, e.g. a prefetch of a study that the user opened, the loader is run
+     * instead of failing.
+     *
+     * @param cancellation cancellation of the caller, only its own cancellation fails
+     *                     the call.
+     * @throws CancellationException if the caller is cancelled.
+     */
+    public V executeOrResume(K key, Callable<V> loader, CancellationToken cancellation) throws Exception {
+        while (true) {
+            try {
+                return execute(key, loader);
+            } catch (CancellationException e) {
+                if (cancellation.isCancelled()) {
+                    throw e;
+                }
+                DownloadMetrics.increment(RESUMED);
+            }
+        }
+    }
+
+    public boolean isInFlight(K key) {
+        return inFlight.containsKey(key);
+    }
+}
@@ -0,0 +1,489 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.ThreadUtil;
+import org.weasis.dicom.google.api.model.DicomStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent on-disk cache of downloaded studies.
+ *
+ * <p>Every study is stored in its own directory below the cache root. Studies are
+ * identified by the DICOM store and the Study Instance UID (see
+ * {@link #getStudyKey(DicomStore, String)}), as the same study may be held by several
+ * stores with different contents. A JSON index keeps the instances of each study,
+ * keyed by Series and SOP Instance UID, together with the time of last access. The index survives restarts and is validated on a
+ * background thread when the cache is first used. Studies are evicted in least
+ * recently used order once the configured size quota is exceeded.
+ *
+ * <p>Instances of a study whose download did not complete are kept with their size
+ * and CRC32, so that a later download can resume and fetch only the missing ones.
+ */
+public class StudyCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StudyCache.class);
+
+    private static final String INDEX_FILE = "index.json"; //$NON-NLS-1$
+
+    private static final ExecutorService CACHE_EXECUTOR = ThreadUtil.buildNewFixedThreadExecutor(1, "Google Dicom Cache"); //$NON-NLS-1$
+
+    private static StudyCache instance;
+
+    private final File root;
+    private final long maxSize;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    /** Studies in access order, least recently used first. */
+    private final LinkedHashMap<String, StudyEntry> studies = new LinkedHashMap<>(16, 0.75f, true);
+    /** Studies opened in this session, they must not be deleted while displayed. */
+    private final Set<String> pinned = new HashSet<>();
+    private final Future<?> indexLoaded;
+    private long totalSize;
+
+    public static synchronized StudyCache getInstance() {
+        if (instance == null) {
+            instance = new StudyCache(DownloadSettings.getCacheDir(), DownloadSettings.getCacheMaxSize());
+        }
+        return instance;
+    }
+
+    StudyCache(File root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+        this.indexLoaded = CACHE_EXECUTOR.submit(this::rebuildIndex);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return key of the study in the cache and among the downloads in flight.
+     */
+    public static String getStudyKey(DicomStore store, String studyUid) {
+        return store.getProject().getId() + '/' + store.getLocation().getId() + '/' + store.getParent().getName()
+                + '/' + store.getName() + '/' + studyUid;
+    }
+
+    /**
+     * Prepares the cache for a download of the study. Files left by a previous
+     * incomplete download are kept, see {@link #getPartialInstances(String)}.
+     *
+     * @return directory where instances of the study must be downloaded.
+     */
+    public File prepareStudy(String studyKey) {
+        awaitIndex();
+        synchronized (this) {
+            pinned.add(studyKey);
+        }
+        return getStudyDir(studyKey);
+    }
+
+    /**
+     * Returns the verified instances left by a previous incomplete download of the
+     * study. Instances whose size or checksum does not match are deleted.
+     *
+     * @return files keyed by SOP Instance UID, empty if nothing can be resumed.
+     */
+    public Map<String, File> getPartialInstances(String studyKey) {
+        awaitIndex();
+        List<InstanceEntry> candidates;
+        synchronized (this) {
+            StudyEntry entry = studies.get(studyKey);
+            if (entry == null || entry.complete) {
+                return new LinkedHashMap<>();
+            }
+            candidates = new ArrayList<>(entry.instances);
+        }
+
+        Map<String, File> files = new LinkedHashMap<>();
+        List<InstanceEntry> invalid = new ArrayList<>();
+        for (InstanceEntry instanceEntry : candidates) {
+            File file = getInstanceFile(studyKey, instanceEntry);
+            if (instanceEntry.sopUid != null && isIntact(studyKey, instanceEntry)
+                    && checksum(file) == instanceEntry.crc) {
+                files.put(instanceEntry.sopUid, file);
+            } else {
+                LOGGER.debug("Discarding corrupted partial instance {}", file);
+                invalid.add(instanceEntry);
+            }
+        }
+
+        if (!invalid.isEmpty()) {
+            synchronized (this) {
+                StudyEntry entry = studies.get(studyKey);
+                if (entry != null) {
+                    for (InstanceEntry instanceEntry : invalid) {
+                        if (entry.instances.remove(instanceEntry)) {
+                            totalSize -= instanceEntry.size;
+                            File file = getInstanceFile(studyKey, instanceEntry);
+                            if (file.exists() && !file.delete()) {
+                                LOGGER.warn("Cannot delete {}", file);
+                            }
+                        }
+                    }
+                }
+                persist();
+            }
+        }
+        return files;
+    }
+
+    private File getStudyDir(String studyKey) {
+        return mkdirs(new File(root, toDirName(studyKey)));
+    }
+
+    private static File mkdirs(File dir) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOGGER.warn("Cannot create cache directory {}", dir);
+        }
+        return dir;
+    }
+
+    private File getInstanceFile(String studyKey, InstanceEntry instanceEntry) {
+        return new File(new File(root, toDirName(studyKey)), instanceEntry.file);
+    }
+
+    private boolean isIntact(String studyKey, InstanceEntry instanceEntry) {
+        return getInstanceFile(studyKey, instanceEntry).length() == instanceEntry.size;
+    }
+
+    /**
+     * Returns the files of a completely downloaded study and marks it as recently used.
+     *
+     * @return files of the study or empty if the study is not cached.
+     */
+    public Optional<List<File>> getStudy(String studyKey) {
+        awaitIndex();
+        synchronized (this) {
+            StudyEntry entry = studies.get(studyKey);
+            if (entry == null || !entry.complete) {
+                return Optional.empty();
+            }
+            List<File> files = new ArrayList<>(entry.instances.size());
+            for (InstanceEntry instanceEntry : entry.instances) {
+                if (!isIntact(studyKey, instanceEntry)) {
+                    LOGGER.warn("Cached study {} is corrupted, removing it", studyKey);
+                    remove(studyKey);
+                    persist();
+                    return Optional.empty();
+                }
+                files.add(getInstanceFile(studyKey, instanceEntry));
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            pinned.add(studyKey);
+            persist();
+            return Optional.of(files);
+        }
+    }
+
+    /**
+     * @return true if the study is completely downloaded. Unlike {@link #getStudy(String)}
+     *         the study is neither verified nor marked as in use.
+     */
+    public boolean isCached(String studyKey) {
+        awaitIndex();
+        synchronized (this) {
+            StudyEntry entry = studies.get(studyKey);
+            return entry != null && entry.complete;
+        }
+    }
+
+    /**
+     * Allows the eviction of a study downloaded in this session that is not displayed,
+     * e.g. a prefetched study.
+     */
+    public synchronized void release(String studyKey) {
+        pinned.remove(studyKey);
+    }
+
+    /**
+     * Registers a downloaded instance. An instance with the same SOP Instance UID
+     * registered by a previous download is replaced.
+     */
+    public void addInstance(String studyKey, DicomPart part) {
+        InstanceEntry instanceEntry = new InstanceEntry();
+        instanceEntry.file = part.getFile().getName();
+        instanceEntry.size = part.getSize();
+        instanceEntry.crc = part.getChecksum();
+        instanceEntry.seriesUid = part.getSeriesInstanceUID();
+        instanceEntry.sopUid = part.getSopInstanceUID();
+        synchronized (this) {
+            StudyEntry entry = studies.computeIfAbsent(studyKey, k -> new StudyEntry());
+            if (instanceEntry.sopUid != null) {
+                Iterator<InstanceEntry> iterator = entry.instances.iterator();
+                while (iterator.hasNext()) {
+                    InstanceEntry previous = iterator.next();
+                    if (instanceEntry.sopUid.equals(previous.sopUid)) {
+                        totalSize -= previous.size;
+                        iterator.remove();
+                    }
+                }
+            }
+            entry.instances.add(instanceEntry);
+            entry.lastAccess = System.currentTimeMillis();
+            totalSize += instanceEntry.size;
+            pinned.add(studyKey);
+        }
+    }
+
+    /**
+     * Marks a study as completely downloaded, persists the index and evicts old studies
+     * if the cache is over quota.
+     */
+    public void markComplete(String studyKey) {
+        awaitIndex();
+        synchronized (this) {
+            StudyEntry entry = studies.get(studyKey);
+            if (entry == null) {
+                return;
+            }
+            entry.complete = true;
+            entry.lastAccess = System.currentTimeMillis();
+            evict();
+            persist();
+        }
+    }
+
+    /**
+     * Persists the index, e.g. after a failed download so that it can be resumed
+     * after a restart.
+     */
+    public synchronized void save() {
+        persist();
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return bytes of the instances of the study in the cache, complete or not, 0 if
+     *         none.
+     */
+    public long getStudySize(String studyKey) {
+        awaitIndex();
+        synchronized (this) {
+            StudyEntry entry = studies.get(studyKey);
+            return entry == null ? 0 : entry.size();
+        }
+    }
+
+    private void awaitIndex() {
+        try {
+            indexLoaded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error("Cannot load cache index", e.getCause());
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, StudyEntry>> iterator = studies.entrySet().iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, StudyEntry> entry = iterator.next();
+            if (!pinned.contains(entry.getKey())) {
+                LOGGER.info("Evicting study {} from cache", entry.getKey());
+                totalSize -= entry.getValue().size();
+                deleteDir(new File(root, toDirName(entry.getKey())));
+                iterator.remove();
+            }
+        }
+        if (totalSize > maxSize) {
+            LOGGER.warn("Cache size {} exceeds quota {}, all remaining studies are in use", totalSize, maxSize);
+        }
+    }
+
+    private void remove(String studyKey) {
+        StudyEntry entry = studies.remove(studyKey);
+        if (entry != null) {
+            totalSize -= entry.size();
+        }
+        pinned.remove(studyKey);
+        deleteDir(new File(root, toDirName(studyKey)));
+    }
+
+    /**
+     * Loads the persisted index, drops entries whose files are gone and deletes
+     * directories that are not referenced by the index.
+     */
+    private void rebuildIndex() {
+        long start = System.currentTimeMillis();
+        if (!root.exists() && !root.mkdirs()) {
+            LOGGER.error("Cannot create cache directory {}", root);
+            return;
+        }
+        Map<String, StudyEntry> persisted = new HashMap<>();
+        File indexFile = new File(root, INDEX_FILE);
+        if (indexFile.exists()) {
+            try {
+                persisted = objectMapper.readValue(indexFile, new TypeReference<Map<String, StudyEntry>>() {
+                });
+            } catch (IOException e) {
+                LOGGER.error("Cannot read cache index, cache is reset", e);
+            }
+        }
+
+        List<Map.Entry<String, StudyEntry>> valid = new ArrayList<>();
+        for (Map.Entry<String, StudyEntry> entry : persisted.entrySet()) {
+            if (isValid(entry.getKey(), entry.getValue())) {
+                valid.add(entry);
+            }
+        }
+        valid.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+
+        synchronized (this) {
+            // Keep studies downloaded while the index was loading
+            Map<String, StudyEntry> current = new LinkedHashMap<>(studies);
+            studies.clear();
+            totalSize = 0;
+            for (Map.Entry<String, StudyEntry> entry : valid) {
+                if (!current.containsKey(entry.getKey())) {
+                    studies.put(entry.getKey(), entry.getValue());
+                    totalSize += entry.getValue().size();
+                }
+            }
+            for (Map.Entry<String, StudyEntry> entry : current.entrySet()) {
+                studies.put(entry.getKey(), entry.getValue());
+                totalSize += entry.getValue().size();
+            }
+
+            Set<String> known = new HashSet<>();
+            studies.keySet().forEach(key -> known.add(toDirName(key)));
+            known.add(INDEX_FILE);
+            File[] children = root.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!known.contains(child.getName())) {
+                        LOGGER.debug("Removing orphaned cache entry {}", child);
+                        deleteDir(child);
+                    }
+                }
+            }
+            evict();
+            persist();
+        }
+        LOGGER.info("Cache index loaded in {} ms: {} studies, {} bytes", System.currentTimeMillis() - start,
+                studies.size(), totalSize);
+    }
+
+    private boolean isValid(String studyKey, StudyEntry entry) {
+        for (InstanceEntry instanceEntry : entry.instances) {
+            if (!isIntact(studyKey, instanceEntry)) {
+                return false;
+            }
+        }
+        return !entry.instances.isEmpty();
+    }
+
+    private void persist() {
+        File indexFile = new File(root, INDEX_FILE);
+        File tmpFile = new File(root, INDEX_FILE + ".tmp"); //$NON-NLS-1$
+        try {
+            objectMapper.writeValue(tmpFile, new LinkedHashMap<>(studies));
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.error("Cannot write cache index", e);
+        }
+    }
+
+    static long checksum(File file) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Cannot read {}", file, e);
+            return -1;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return directory name of a study, unique for each store and Study Instance UID.
+     */
+    static String toDirName(String studyKey) {
+        return UUID.nameUUIDFromBytes(studyKey.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static void deleteDir(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteDir(child);
+            }
+        }
+        if (!file.delete()) {
+            LOGGER.warn("Cannot delete {}", file);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class StudyEntry {
+        public long lastAccess;
+        public boolean complete;
+        public List<InstanceEntry> instances = new ArrayList<>();
+
+        long size() {
+            long size = 0;
+            for (InstanceEntry instanceEntry : instances) {
+                size += instanceEntry.size;
+            }
+            return size;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class InstanceEntry {
+        public String seriesUid;
+        public String sopUid;
+        public String file;
+        public long size;
+        public long crc;
+    }
+}
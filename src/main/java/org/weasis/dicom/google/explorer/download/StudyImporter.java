@@ -0,0 +1,109 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Consumer side of a streaming study download. The download thread hands every
+ * completed part to {@link #add(File)} and the importer passes it to Weasis on its
+ * own thread, so the first images are shown while the rest of the study is still
+ * being transferred. Files queued while the previous import was running are
+ * imported together as one batch.
+ */
+public class StudyImporter implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StudyImporter.class);
+
+    private static final File END_OF_STUDY = new File("");
+
+    private final BlockingQueue<File> queue = new LinkedBlockingQueue<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final Consumer<List<File>> importer;
+    private final BooleanSupplier cancelled;
+
+    /**
+     * @param importer action opening a batch of downloaded files in Weasis.
+     * @param cancelled tells whether the owning download has been cancelled.
+     */
+    public StudyImporter(Consumer<List<File>> importer, BooleanSupplier cancelled) {
+        this.importer = importer;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Queues a downloaded file for import.
+     */
+    public void add(File file) {
+        queue.add(file);
+    }
+
+    /**
+     * Signals that no more files will be added.
+     */
+    public void finish() {
+        queue.add(END_OF_STUDY);
+    }
+
+    /**
+     * Waits until all queued files have been imported.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        finished.await();
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<File> batch = new ArrayList<>();
+            boolean end = false;
+            while (!end) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                int index = batch.indexOf(END_OF_STUDY);
+                if (index >= 0) {
+                    end = true;
+                    batch.subList(index, batch.size()).clear();
+                }
+                if (cancelled.getAsBoolean()) {
+                    LOGGER.info("Download cancelled, stopping import");
+                    break;
+                }
+                if (!batch.isEmpty()) {
+                    try {
+                        importer.accept(batch);
+                    } catch (Exception e) {
+                        LOGGER.error("Cannot import {} files", batch.size(), e);
+                    }
+                }
+                batch = new ArrayList<>();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structure of a study read from the WADO-RS {@code /metadata} response.
+ *
+ * <p>The response holds every attribute of every instance except bulk data and can
+ * reach tens of megabytes for large studies. It is read with the streaming parser and
+ * only the few attributes describing the series and instances are kept.
+ *
+ * <p>The structure only drives the retrieval, see {@link StudyRetriever}. Weasis builds
+ * series and thumbnails with {@code DicomMediaIO}, which reads an instance file, so
+ * nothing is laid out before the first instances of a series are downloaded.
+ */
+public class StudyMetadata {
+
+    public static final String ACCEPT = "application/dicom+json"; //$NON-NLS-1$
+
+    private static final String SERIES_INSTANCE_UID = "0020000E"; //$NON-NLS-1$
+    private static final String SOP_INSTANCE_UID = "00080018"; //$NON-NLS-1$
+    private static final String SERIES_NUMBER = "00200011"; //$NON-NLS-1$
+    private static final String INSTANCE_NUMBER = "00200013"; //$NON-NLS-1$
+    private static final String MODALITY = "00080060"; //$NON-NLS-1$
+    private static final String SERIES_DESCRIPTION = "0008103E"; //$NON-NLS-1$
+    private static final String NUMBER_OF_FRAMES = "00280008"; //$NON-NLS-1$
+    private static final Set<String> TAGS = new HashSet<>(Arrays.asList(SERIES_INSTANCE_UID, SOP_INSTANCE_UID,
+            SERIES_NUMBER, INSTANCE_NUMBER, MODALITY, SERIES_DESCRIPTION, NUMBER_OF_FRAMES));
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final List<Series> series;
+
+    private StudyMetadata(List<Series> series) {
+        this.series = series;
+    }
+
+    /**
+     * @return series ordered by Series Number.
+     */
+    public List<Series> getSeries() {
+        return series;
+    }
+
+    public int getInstanceCount() {
+        int count = 0;
+        for (Series s : series) {
+            count += s.getInstances().size();
+        }
+        return count;
+    }
+
+    /**
+     * Reads a {@code application/dicom+json} array of instances.
+     */
+    public static StudyMetadata parse(InputStream in) throws IOException {
+        Map<String, Series> seriesMap = new LinkedHashMap<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Metadata is not a JSON array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                Map<String, String> values = readInstance(parser);
+                String seriesUid = values.get(SERIES_INSTANCE_UID);
+                String sopUid = values.get(SOP_INSTANCE_UID);
+                if (seriesUid == null || sopUid == null) {
+                    throw new IOException("Instance without Series or SOP Instance UID");
+                }
+                Series s = seriesMap.computeIfAbsent(seriesUid, uid -> new Series(uid,
+                        toInteger(values.get(SERIES_NUMBER)), values.get(MODALITY), values.get(SERIES_DESCRIPTION)));
+                s.instances.add(new Instance(sopUid, toInteger(values.get(INSTANCE_NUMBER)),
+                        toInteger(values.get(NUMBER_OF_FRAMES))));
+            }
+        }
+        List<Series> series = new ArrayList<>(seriesMap.values());
+        series.sort(Comparator.comparing(Series::getNumber, Comparator.nullsLast(Comparator.naturalOrder())));
+        for (Series s : series) {
+            s.instances.sort(
+                    Comparator.comparing(Instance::getNumber, Comparator.nullsLast(Comparator.naturalOrder())));
+        }
+        return new StudyMetadata(Collections.unmodifiableList(series));
+    }
+
+    /**
+     * Reads the attributes of interest of the instance starting at the current token.
+     */
+    private static Map<String, String> readInstance(JsonParser parser) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String tag = parser.getCurrentName();
+            parser.nextToken();
+            if (TAGS.contains(tag)) {
+                String value = readFirstValue(parser);
+                if (value != null) {
+                    values.put(tag, value);
+                }
+            } else {
+                // Sequences and everything else are skipped without being built
+                parser.skipChildren();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return first scalar of the {@code Value} array of the attribute starting at the
+     *         current token.
+     */
+    private static String readFirstValue(JsonParser parser) throws IOException {
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("Value".equals(name) && token == JsonToken.START_ARRAY) { //$NON-NLS-1$
+                for (JsonToken item = parser.nextToken(); item != JsonToken.END_ARRAY; item = parser.nextToken()) {
+                    if (value == null && item.isScalarValue()) {
+                        value = parser.getValueAsString();
+                    }
+                    parser.skipChildren();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    private static Integer toInteger(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static final class Series {
+        private final String uid;
+        private final Integer number;
+        private final String modality;
+        private final String description;
+        private final List<Instance> instances = new ArrayList<>();
+
+        Series(String uid, Integer number, String modality, String description) {
+            this.uid = uid;
+            this.number = number;
+            this.modality = modality;
+            this.description = description;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        public Integer getNumber() {
+            return number;
+        }
+
+        public String getModality() {
+            return modality;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return instances ordered by Instance Number.
+         */
+        public List<Instance> getInstances() {
+            return instances;
+        }
+    }
+
+    public static final class Instance {
+        private final String uid;
+        private final Integer number;
+        private final Integer numberOfFrames;
+
+        Instance(String uid, Integer number, Integer numberOfFrames) {
+            this.uid = uid;
+            this.number = number;
+            this.numberOfFrames = numberOfFrames;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        public Integer getNumber() {
+            return number;
+        }
+
+        public Integer getNumberOfFrames() {
+            return numberOfFrames;
+        }
+    }
+}
@@ -0,0 +1,621 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.api.CircuitOpenException;
+import org.weasis.dicom.google.api.ExponentialBackoff;
+import org.weasis.dicom.google.api.GoogleAPIClient;
+import org.weasis.dicom.google.api.RetryPolicy;
+import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.api.model.InstanceModel;
+import org.weasis.dicom.google.api.model.SeriesModel;
+import org.weasis.dicom.google.api.model.StudyModel.RecordPlain;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Retrieves a study from a DICOM store. Series (or instances) are listed with
+ * QIDO-RS first and then fetched concurrently, so a large study is no longer
+ * limited by the throughput of a single TCP stream. When listing fails the whole
+ * study is retrieved with a single request. In metadata-first mode the structure of
+ * the study is read from WADO-RS {@code /metadata} instead of QIDO-RS listings.
+ *
+ * <p>Received instances are tracked by SOP Instance UID. When a request breaks, the
+ * parts already written are kept and only the missing instances of the failed
+ * study or series are fetched again with instance level requests.
+ */
+public class StudyRetriever {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StudyRetriever.class);
+
+    // With adaptive concurrency, the limit of each store decides how many threads send requests
+    static final PriorityExecutor RETRIEVE_EXECUTOR = new PriorityExecutor(
+            DownloadSettings.isAdaptiveConcurrency() ? DownloadSettings.getRetrieveMaxConcurrency()
+                    : DownloadSettings.getRetrieveConcurrency(), "Google Dicom Retrieve"); //$NON-NLS-1$
+
+    // Delays the retries, so that a request waiting to be sent again holds no retrieve thread
+    private static final ScheduledExecutorService RETRY_EXECUTOR = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "Google Dicom Retrieve Retry"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static final int MAX_INSTANCE_ATTEMPTS = 3;
+
+    public static final String METADATA_TIME = "metadata.time"; //$NON-NLS-1$
+
+    private static final int STATUS_CODE_NOT_ACCEPTABLE = 406;
+
+    public enum Mode {
+        /** One request for the whole study. */
+        STUDY,
+        /** One request per series. */
+        SERIES,
+        /** One request per instance. */
+        INSTANCE
+    }
+
+    private final GoogleAPIClient client;
+    private final DicomStore store;
+    private final String studyId;
+    private final MultipartDownloader downloader;
+    private final CancellationToken cancellation;
+    private final Set<String> received = ConcurrentHashMap.newKeySet();
+    private final Priority priority;
+    private final AtomicLong networkBytes = new AtomicLong();
+    private final AtomicLong networkNanos = new AtomicLong();
+    private TransferSyntax requestedSyntax;
+    private volatile TransferSyntax transferSyntax;
+    private StudyMetadata metadata;
+    private final RetryPolicy retryPolicy = ExponentialBackoff.fromSettings();
+
+    public StudyRetriever(GoogleAPIClient client, DicomStore store, String studyId, File targetDir,
+            CancellationToken cancellation) {
+        this(client, store, studyId, targetDir, cancellation, Priority.INTERACTIVE);
+    }
+
+    /**
+     * @param priority class of the download in the retrieve pool and the {@link DownloadBudget}.
+     */
+    public StudyRetriever(GoogleAPIClient client, DicomStore store, String studyId, File targetDir,
+            CancellationToken cancellation, Priority priority) {
+        this.client = client;
+        this.store = store;
+        this.studyId = studyId;
+        this.cancellation = cancellation;
+        this.priority = priority;
+        this.downloader = new MultipartDownloader(client, store.getName(), targetDir, cancellation, priority);
+    }
+
+    /**
+     * Forces the transfer syntax instead of letting {@link TransferSyntaxPolicy} choose
+     * it. A store that cannot provide it fails the retrieval instead of falling back to
+     * the stored data.
+     */
+    public void setTransferSyntax(TransferSyntax transferSyntax) {
+        this.requestedSyntax = transferSyntax;
+    }
+
+    /**
+     * Retrieves all instances of the study.
+     *
+     * @param partConsumer receives each instance as soon as it is written. It may be
+     *                     called concurrently from several threads.
+     * @return downloaded files.
+     * @throws IOException if the study could not be retrieved.
+     */
+    public List<File> retrieve(Consumer<DicomPart> partConsumer) throws IOException {
+        List<File> files = doRetrieve(partConsumer);
+        recordThroughput();
+        return files;
+    }
+
+    private List<File> doRetrieve(Consumer<DicomPart> partConsumer) throws IOException {
+        transferSyntax = requestedSyntax == null ? TransferSyntaxPolicy.getInstance().select(store)
+                : requestedSyntax;
+        Mode mode = DownloadSettings.getRetrieveMode();
+        if (mode == Mode.INSTANCE) {
+            // Larger than the series listing, only worth it when instances are listed
+            loadMetadata();
+        }
+        List<Target> targets = Collections.emptyList();
+        if (mode != Mode.STUDY) {
+            try {
+                targets = listTargets(mode);
+            } catch (Exception e) {
+                LOGGER.warn("Cannot list series of study {}, retrieving the whole study", studyId, e);
+            }
+        }
+        if (targets.isEmpty()) {
+            targets = Collections.singletonList(new Target(null, null));
+        }
+        return retrieveWithRecovery(targets, partConsumer);
+    }
+
+    /**
+     * Retrieves the instances of the study that are not already available locally,
+     * e.g. after an interrupted download.
+     *
+     * @param available SOP Instance UIDs already downloaded.
+     * @param partConsumer receives each missing instance as soon as it is written.
+     * @return downloaded files.
+     * @throws IOException if the missing instances could not be retrieved.
+     */
+    public List<File> retrieveMissing(Set<String> available, Consumer<DicomPart> partConsumer) throws IOException {
+        List<File> files = doRetrieveMissing(available, partConsumer);
+        recordThroughput();
+        return files;
+    }
+
+    private List<File> doRetrieveMissing(Set<String> available, Consumer<DicomPart> partConsumer)
+            throws IOException {
+        transferSyntax = requestedSyntax == null ? TransferSyntaxPolicy.getInstance().select(store)
+                : requestedSyntax;
+        received.addAll(available);
+        loadMetadata();
+        List<Target> missing;
+        try {
+            missing = listMissingInstances(new Target(null, null));
+        } catch (Exception e) {
+            LOGGER.warn("Cannot list instances of study {}, retrieving the whole study", studyId, e);
+            return retrieveWithRecovery(Collections.singletonList(new Target(null, null)), partConsumer);
+        }
+        LOGGER.info("Resuming study {}: {} instances available, {} missing", studyId, available.size(),
+                missing.size());
+        return retrieveInstances(missing, partConsumer);
+    }
+
+    /**
+     * Retrieves the middle instance of each series, e.g. to show a preview of the study
+     * before its instances are downloaded. Series that cannot be listed or retrieved are
+     * skipped.
+     *
+     * @return downloaded files, at most one per series.
+     * @throws IOException if the series of the study cannot be listed.
+     */
+    public List<File> retrieveMiddleInstances(Consumer<DicomPart> partConsumer) throws IOException {
+        transferSyntax = requestedSyntax == null ? TransferSyntaxPolicy.getInstance().select(store)
+                : requestedSyntax;
+        List<String> seriesIds;
+        try {
+            seriesIds = listSeries();
+        } catch (Exception e) {
+            throw new IOException("Cannot list series of study " + studyId, e);
+        }
+        List<Target> targets = new ArrayList<>(seriesIds.size());
+        for (String seriesId : seriesIds) {
+            cancellation.throwIfCancelled();
+            try {
+                List<Target> instances = listInstances(seriesId);
+                if (!instances.isEmpty()) {
+                    targets.add(instances.get(instances.size() / 2));
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Cannot list instances of series {}", seriesId, e);
+            }
+        }
+        List<File> files = new ArrayList<>();
+        retrieveAll(targets, partConsumer, files, 1);
+        return files;
+    }
+
+    /**
+     * Reads the structure of the study when metadata-first mode is enabled. Without it,
+     * QIDO-RS listings are used as before. The response is read within the download
+     * budget and the bandwidth limits of the retrieval and can be cancelled like it.
+     *
+     * @throws DownloadCancelledException if the retrieval is cancelled.
+     */
+    private void loadMetadata() throws DownloadCancelledException {
+        if (!DownloadSettings.isMetadataFirst()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(StudyMetadata.ACCEPT);
+        try (DownloadBudget.Permit permit = DownloadBudget.getInstance().acquire(priority, cancellation)) {
+            HttpResponse response = client.executeGetRequest(GoogleAPIClient.getImageUrl(store, studyId)
+                    + "/metadata", headers); //$NON-NLS-1$
+            // Closing the connection unblocks the thread reading the response
+            Runnable abort = () -> {
+                try {
+                    response.disconnect();
+                } catch (IOException e) {
+                    LOGGER.debug("Cannot disconnect metadata of study {}", studyId, e);
+                }
+            };
+            cancellation.register(abort);
+            try {
+                metadata = StudyMetadata.parse(BandwidthLimiter.getInstance().wrap(response.getContent(), priority,
+                        store.getName(), cancellation));
+            } finally {
+                cancellation.unregister(abort);
+                response.disconnect();
+            }
+        } catch (IOException e) {
+            cancellation.throwIfCancelled();
+            LOGGER.warn("Cannot read metadata of study {}, listing series instead", studyId, e);
+            return;
+        }
+        DownloadMetrics.recordTime(METADATA_TIME, System.currentTimeMillis() - start);
+        LOGGER.info("Study {}: {} series, {} instances", studyId, metadata.getSeries().size(),
+                metadata.getInstanceCount());
+    }
+
+    /**
+     * Records the throughput of the responses, from the time spent waiting for the store
+     * only. Downloads that may be throttled locally would report the limit, not the link.
+     */
+    private void recordThroughput() {
+        long bytes = networkBytes.get();
+        // Small transfers are dominated by latency
+        if (requestedSyntax == null && bytes >= 1024 * 1024) {
+            TransferSyntaxPolicy.getInstance().recordThroughput(store, bytes,
+                    TimeUnit.NANOSECONDS.toMillis(networkNanos.get()));
+        }
+    }
+
+    private List<File> retrieveWithRecovery(List<Target> targets, Consumer<DicomPart> partConsumer) throws IOException {
+        List<File> files = new ArrayList<>();
+        List<Target> failed = retrieveAll(targets, partConsumer, files, 1);
+        if (!failed.isEmpty()) {
+            cancellation.throwIfCancelled();
+            List<Target> missing = new ArrayList<>();
+            for (Target target : failed) {
+                try {
+                    missing.addAll(listMissingInstances(target));
+                } catch (Exception e) {
+                    throw new IOException("Cannot list instances to recover " + target.getUrl(), e);
+                }
+            }
+            LOGGER.info("Recovering study {}: fetching {} missing instances", studyId, missing.size());
+            files.addAll(retrieveInstances(missing, partConsumer));
+        }
+        return files;
+    }
+
+    private List<File> retrieveInstances(List<Target> instances, Consumer<DicomPart> partConsumer) throws IOException {
+        List<File> files = new ArrayList<>();
+        List<Target> failed = retrieveAll(instances, partConsumer, files, MAX_INSTANCE_ATTEMPTS);
+        if (!failed.isEmpty()) {
+            cancellation.throwIfCancelled();
+            throw new IOException(failed.size() + " instances of study " + studyId + " could not be retrieved");
+        }
+        return files;
+    }
+
+    /**
+     * Fetches all targets concurrently.
+     *
+     * @return targets that could not be retrieved.
+     */
+    private List<Target> retrieveAll(List<Target> targets, Consumer<DicomPart> partConsumer, List<File> files,
+            int attempts) throws IOException {
+        Consumer<DicomPart> tracking = part -> {
+            String sopInstanceUID = part.getSopInstanceUID();
+            if (sopInstanceUID != null && !received.add(sopInstanceUID)) {
+                // Already received by a previous attempt
+                if (!part.getFile().delete()) {
+                    LOGGER.warn("Cannot delete duplicate {}", part.getFile());
+                }
+                return;
+            }
+            partConsumer.accept(part);
+        };
+
+        List<Future<List<File>>> futures = new ArrayList<>(targets.size());
+        for (Target target : targets) {
+            futures.add(new Fetch(target, tracking, attempts).start());
+        }
+
+        List<Target> failed = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    for (File file : futures.get(i).get()) {
+                        if (file.exists()) {
+                            files.add(file);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof DownloadCancelledException)) {
+                        LOGGER.warn("Retrieval of {} failed", targets.get(i).getUrl(), e.getCause());
+                    }
+                    failed.add(targets.get(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancellation.cancel();
+            throw new InterruptedIOException("Retrieval of study " + studyId + " interrupted");
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+        return failed;
+    }
+
+    private List<File> download(Target target, TransferSyntax syntax, Consumer<DicomPart> partConsumer,
+            AdaptiveConcurrency.StoreLimit limit, long start) throws IOException {
+        TransferTiming timing = new TransferTiming();
+        Exception failure = null;
+        try {
+            List<File> files = downloader.download(target.getUrl(), syntax, partConsumer, timing);
+            if (priority == Priority.INTERACTIVE
+                    && !BandwidthLimiter.getInstance().isLimited(priority, store.getName())) {
+                networkBytes.addAndGet(timing.getBytes());
+                networkNanos.addAndGet(timing.getNetworkNanos());
+            }
+            return files;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (limit != null) {
+                limit.release(start, timing, failure);
+            }
+        }
+    }
+
+    /**
+     * Retrieval of one target. With adaptive concurrency, each attempt gets a request slot
+     * of the store before it is queued in the retrieve pool, so that requests waiting for
+     * the store do not hold the threads needed by the requests of higher priority. The
+     * delay before a retry is waited on a timer for the same reason.
+     */
+    private final class Fetch {
+        private final Target target;
+        private final Consumer<DicomPart> partConsumer;
+        private final int attempts;
+        private final AdaptiveConcurrency.StoreLimit limit;
+        private final CompletableFuture<List<File>> result = new CompletableFuture<>();
+        private final Runnable abortRetry = this::abortRetry;
+        private volatile ScheduledFuture<?> retry;
+        private int attempt = 1;
+        private int rejections;
+
+        Fetch(Target target, Consumer<DicomPart> partConsumer, int attempts) {
+            this.target = target;
+            this.partConsumer = partConsumer;
+            this.attempts = attempts;
+            AdaptiveConcurrency concurrency = AdaptiveConcurrency.getInstance();
+            this.limit = concurrency == null ? null : concurrency.forStore(store.getName());
+        }
+
+        CompletableFuture<List<File>> start() {
+            next();
+            return result;
+        }
+
+        private void next() {
+            if (limit == null) {
+                RETRIEVE_EXECUTOR.execute(priority, () -> run(0));
+                return;
+            }
+            limit.acquire(priority, cancellation).whenComplete((start, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    RETRIEVE_EXECUTOR.execute(priority, () -> run(start));
+                }
+            });
+        }
+
+        private void run(long start) {
+            TransferSyntax syntax = transferSyntax;
+            try {
+                result.complete(download(target, syntax, partConsumer, limit, start));
+            } catch (IOException e) {
+                retry(syntax, e);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private void retry(TransferSyntax syntax, IOException e) {
+            if (syntax != TransferSyntax.ANY && e instanceof HttpResponseException
+                    && ((HttpResponseException) e).getStatusCode() == STATUS_CODE_NOT_ACCEPTABLE) {
+                if (requestedSyntax != null) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                // The store cannot transcode to the requested syntax, take the stored data
+                TransferSyntaxPolicy.getInstance().markNotAcceptable(store, syntax);
+                transferSyntax = TransferSyntax.ANY;
+                next();
+                return;
+            }
+            if (cancellation.isCancelled() || e instanceof CircuitOpenException) {
+                result.completeExceptionally(e);
+                return;
+            }
+            long delay;
+            if (e instanceof HttpResponseException) {
+                // Rejected before any data, retried here rather than by the client so that the wait
+                // holds neither the concurrency slot nor the budget permit
+                delay = ExponentialBackoff.isTransient(e) ? retryPolicy.getDelay(++rejections, e) : -1;
+                if (delay < 0) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                DownloadMetrics.increment(GoogleAPIClient.RETRIES);
+                LOGGER.debug("Retrieval of {} rejected, retrying in {} ms", target.getUrl(), delay, e);
+            } else {
+                if (attempt >= attempts) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                LOGGER.debug("Attempt {} to retrieve {} failed", attempt, target.getUrl(), e);
+                delay = 1000L * attempt++;
+            }
+            schedule(delay);
+        }
+
+        private void schedule(long delay) {
+            cancellation.register(abortRetry);
+            retry = RETRY_EXECUTOR.schedule(() -> {
+                cancellation.unregister(abortRetry);
+                next();
+            }, delay, TimeUnit.MILLISECONDS);
+            if (cancellation.isCancelled()) {
+                // Cancelled before the retry could be aborted
+                abortRetry();
+            }
+        }
+
+        private void abortRetry() {
+            ScheduledFuture<?> pending = retry;
+            if (pending != null && pending.cancel(false)) {
+                cancellation.unregister(abortRetry);
+                result.completeExceptionally(new DownloadCancelledException());
+            }
+        }
+    }
+
+    private List<Target> listTargets(Mode mode) throws Exception {
+        List<Target> targets = new ArrayList<>();
+        for (String seriesId : listSeries()) {
+            if (mode == Mode.INSTANCE) {
+                try {
+                    targets.addAll(listInstances(seriesId));
+                } catch (Exception e) {
+                    LOGGER.warn("Cannot list instances of series {}, retrieving the whole series", seriesId, e);
+                    targets.add(new Target(seriesId, null));
+                }
+            } else {
+                targets.add(new Target(seriesId, null));
+            }
+        }
+        return targets;
+    }
+
+    private List<String> listSeries() throws Exception {
+        if (metadata != null) {
+            List<String> seriesIds = new ArrayList<>();
+            metadata.getSeries().forEach(series -> seriesIds.add(series.getUid()));
+            return seriesIds;
+        }
+        List<SeriesModel> seriesList = new ArrayList<>(client.fetchSeries(store, studyId));
+        seriesList.sort(Comparator.comparingInt(s -> toInt(s.getSeriesNumber())));
+        List<String> seriesIds = new ArrayList<>(seriesList.size());
+        for (SeriesModel series : seriesList) {
+            String seriesId = series.getSeriesInstanceUID() == null ? null
+                    : series.getSeriesInstanceUID().getFirstValue().orElse(null);
+            if (seriesId == null) {
+                throw new IllegalStateException("Series without Series Instance UID");
+            }
+            seriesIds.add(seriesId);
+        }
+        return seriesIds;
+    }
+
+    private List<Target> listInstances(String seriesId) throws Exception {
+        if (metadata != null) {
+            List<Target> targets = new ArrayList<>();
+            for (StudyMetadata.Series series : metadata.getSeries()) {
+                if (series.getUid().equals(seriesId)) {
+                    series.getInstances().forEach(instance -> targets.add(new Target(seriesId, instance.getUid())));
+                }
+            }
+            return targets;
+        }
+        List<InstanceModel> instances = new ArrayList<>(client.fetchInstances(store, studyId, seriesId));
+        instances.sort(Comparator.comparingInt(i -> toInt(i.getInstanceNumber())));
+        List<Target> targets = new ArrayList<>(instances.size());
+        for (InstanceModel instance : instances) {
+            String instanceId = instance.getSopInstanceUID() == null ? null
+                    : instance.getSopInstanceUID().getFirstValue().orElse(null);
+            if (instanceId == null) {
+                throw new IllegalStateException("Instance without SOP Instance UID");
+            }
+            targets.add(new Target(seriesId, instanceId));
+        }
+        return targets;
+    }
+
+    /**
+     * @return instances of the target scope that have not been received yet.
+     */
+    private List<Target> listMissingInstances(Target scope) throws Exception {
+        List<Target> instances = new ArrayList<>();
+        if (scope.instanceId != null) {
+            instances.add(scope);
+        } else if (scope.seriesId != null) {
+            instances.addAll(listInstances(scope.seriesId));
+        } else {
+            for (String seriesId : listSeries()) {
+                instances.addAll(listInstances(seriesId));
+            }
+        }
+        instances.removeIf(target -> received.contains(target.instanceId));
+        return instances;
+    }
+
+    private static int toInt(RecordPlain record) {
+        if (record == null) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return record.getFirstValue().map(Integer::parseInt).orElse(Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Study, series or instance to retrieve.
+     */
+    private final class Target {
+        private final String seriesId;
+        private final String instanceId;
+
+        Target(String seriesId, String instanceId) {
+            this.seriesId = seriesId;
+            this.instanceId = instanceId;
+        }
+
+        String getUrl() {
+            if (instanceId != null) {
+                return GoogleAPIClient.getInstanceUrl(store, studyId, seriesId, instanceId);
+            }
+            if (seriesId != null) {
+                return GoogleAPIClient.getSeriesUrl(store, studyId, seriesId);
+            }
+            return GoogleAPIClient.getImageUrl(store, studyId);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+/**
+ * Transfer syntaxes that can be requested from a DICOM store with WADO-RS.
+ */
+public enum TransferSyntax {
+    /** Whatever the store holds, no transcoding. */
+    ANY("*"), //$NON-NLS-1$
+    EXPLICIT_VR_LITTLE_ENDIAN("1.2.840.10008.1.2.1"), //$NON-NLS-1$
+    JPEG2000_LOSSLESS("1.2.840.10008.1.2.4.90"), //$NON-NLS-1$
+    JPEG_LS_LOSSLESS("1.2.840.10008.1.2.4.80"), //$NON-NLS-1$
+    /** Lossy, only suitable for previews. */
+    JPEG_BASELINE("1.2.840.10008.1.2.4.50"); //$NON-NLS-1$
+
+    private final String uid;
+
+    TransferSyntax(String uid) {
+        this.uid = uid;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    /**
+     * @return value of the {@code Accept} header of a study, series or instance request.
+     */
+    public String getAccept() {
+        return "multipart/related; type=application/dicom; transfer-syntax=" + uid; //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.google.api.model.DicomStore;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the transfer syntax requested from each DICOM store.
+ *
+ * <p>The policy is configured globally or per store (see
+ * {@link DownloadSettings#getTransferSyntaxPolicy(DicomStore)}). With {@code auto}, the
+ * throughput of the responses to previous interactive retrievals from the store, not
+ * counting the time spent throttled or queued locally, decides: below
+ * {@link DownloadSettings#getSlowLinkThreshold()} a lossless compressed syntax is
+ * requested to cut the bytes on the wire, above it explicit VR little endian avoids
+ * decompression on the client. A syntax rejected by a store with {@code 406 Not
+ * Acceptable} is not requested again from that store.
+ */
+public class TransferSyntaxPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferSyntaxPolicy.class);
+
+    public static final String AUTO = "auto"; //$NON-NLS-1$
+    public static final String FALLBACK = "transferSyntax.fallback"; //$NON-NLS-1$
+
+    /** Weight of the last measurement in the throughput average. */
+    private static final double SMOOTHING = 0.3;
+
+    private static final TransferSyntaxPolicy INSTANCE = new TransferSyntaxPolicy();
+
+    private final Map<DicomStore, Double> throughput = new ConcurrentHashMap<>();
+    private final Map<DicomStore, Set<TransferSyntax>> notAcceptable = new ConcurrentHashMap<>();
+
+    TransferSyntaxPolicy() {
+    }
+
+    public static TransferSyntaxPolicy getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return transfer syntax to request from the store.
+     */
+    public TransferSyntax select(DicomStore store) {
+        TransferSyntax syntax = parse(DownloadSettings.getTransferSyntaxPolicy(store), store);
+        if (syntax != TransferSyntax.ANY && notAcceptable.getOrDefault(store, Collections.emptySet())
+                .contains(syntax)) {
+            return TransferSyntax.ANY;
+        }
+        return syntax;
+    }
+
+    private TransferSyntax parse(String policy, DicomStore store) {
+        switch (policy.trim().toLowerCase(Locale.ENGLISH)) {
+            case "explicit": //$NON-NLS-1$
+                return TransferSyntax.EXPLICIT_VR_LITTLE_ENDIAN;
+            case "j2k": //$NON-NLS-1$
+                return TransferSyntax.JPEG2000_LOSSLESS;
+            case "jpegls": //$NON-NLS-1$
+                return TransferSyntax.JPEG_LS_LOSSLESS;
+            case AUTO:
+                return selectFromThroughput(store);
+            default:
+                return TransferSyntax.ANY;
+        }
+    }
+
+    private TransferSyntax selectFromThroughput(DicomStore store) {
+        Double mbps = throughput.get(store);
+        if (mbps == null) {
+            // Nothing measured yet, take the stored data as is
+            return TransferSyntax.ANY;
+        }
+        return mbps < DownloadSettings.getSlowLinkThreshold() ? TransferSyntax.JPEG2000_LOSSLESS
+                : TransferSyntax.EXPLICIT_VR_LITTLE_ENDIAN;
+    }
+
+    /**
+     * Records the throughput of a retrieval from the store.
+     */
+    public void recordThroughput(DicomStore store, long bytes, long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        double mbps = bytes * 8.0 / 1000.0 / millis;
+        double average = throughput.merge(store, mbps, (old, value) -> old + SMOOTHING * (value - old));
+        LOGGER.debug("Throughput of store {}: {} Mbit/s, average {} Mbit/s", store.getName(), mbps, average);
+    }
+
+    public Double getThroughput(DicomStore store) {
+        return throughput.get(store);
+    }
+
+    /**
+     * Remembers that the store answered {@code 406 Not Acceptable} to the transfer syntax.
+     */
+    public void markNotAcceptable(DicomStore store, TransferSyntax syntax) {
+        LOGGER.info("Store {} cannot provide transfer syntax {}, falling back to stored data", store.getName(),
+                syntax.getUid());
+        DownloadMetrics.increment(FALLBACK);
+        notAcceptable.computeIfAbsent(store, k -> ConcurrentHashMap.newKeySet()).add(syntax);
+    }
+}
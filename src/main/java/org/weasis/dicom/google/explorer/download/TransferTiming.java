@@ -0,0 +1,93 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time a retrieve request spent waiting for the store: until the response headers,
+ * then inside reads of the raw response. Waits for the {@link DownloadBudget}, the
+ * {@link BandwidthLimiter} sleeps, write-behind backpressure and disk writes happen
+ * between reads and are not counted, so the measure reflects the store and the network
+ * only.
+ */
+public final class TransferTiming {
+
+    private final AtomicLong networkNanos = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    void addNetworkTime(long nanos) {
+        networkNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Wraps the raw content of the response, before any throttling.
+     */
+    InputStream wrap(InputStream in) {
+        return new TimedInputStream(in);
+    }
+
+    public long getNetworkNanos() {
+        return networkNanos.get();
+    }
+
+    /**
+     * @return bytes of the response body, including multipart headers.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private final class TimedInputStream extends FilterInputStream {
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            addNetworkTime(System.nanoTime() - start);
+            if (b >= 0) {
+                bytes.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(b, off, len);
+            addNetworkTime(System.nanoTime() - start);
+            if (n > 0) {
+                bytes.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(n);
+            addNetworkTime(System.nanoTime() - start);
+            bytes.addAndGet(Math.max(0, skipped));
+            return skipped;
+        }
+    }
+}
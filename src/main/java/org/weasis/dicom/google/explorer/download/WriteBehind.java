@@ -0,0 +1,330 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.api.util.ThreadUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind stage decoupling network reads from disk writes.
+ *
+ * <p>The thread reading a response copies part bodies into pooled direct buffers and
+ * queues them to a writer thread, so a slow disk no longer stalls the TCP receive
+ * window and a slow network no longer leaves the disk idle. All the buffers of a
+ * part go to the same writer, in order. The buffer pool is bounded: when writers fall
+ * behind, readers block until a buffer is released, which applies backpressure to
+ * the network.
+ */
+public class WriteBehind {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehind.class);
+
+    /** Number of times a reader had to wait for a free buffer. */
+    public static final String BACKPRESSURE = "write.backpressure";
+    public static final String BYTES_WRITTEN = "write.bytes";
+
+    private static WriteBehind instance;
+
+    private final BlockingQueue<ByteBuffer> pool;
+    private final BlockingQueue<Operation>[] queues;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+
+    /**
+     * @return the shared stage or null if write-behind is disabled.
+     */
+    public static synchronized WriteBehind getInstance() {
+        if (instance == null && DownloadSettings.isWriteBehindEnabled()) {
+            instance = new WriteBehind(DownloadSettings.getWriteThreads(), DownloadSettings.getWriteBuffers(),
+                    DownloadSettings.getWriteBufferSize());
+        }
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    WriteBehind(int writers, int buffers, int bufferSize) {
+        this.pool = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            pool.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.queues = new BlockingQueue[writers];
+        ExecutorService executor = ThreadUtil.buildNewFixedThreadExecutor(writers, "Google Dicom Writer"); //$NON-NLS-1$
+        for (int i = 0; i < writers; i++) {
+            // Every queued operation holds at most one buffer, plus one close per part
+            BlockingQueue<Operation> queue = new ArrayBlockingQueue<>(2 * buffers);
+            queues[i] = queue;
+            executor.execute(() -> runWriter(queue));
+        }
+    }
+
+    /**
+     * Opens a part to be written asynchronously to the file.
+     */
+    public PartChannel open(File file) {
+        int writer = Math.floorMod(nextWriter.getAndIncrement(), queues.length);
+        return new PartChannel(file, queues[writer]);
+    }
+
+    private ByteBuffer acquire() throws InterruptedIOException {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            DownloadMetrics.increment(BACKPRESSURE);
+            try {
+                buffer = pool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a write buffer");
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void release(ByteBuffer buffer) {
+        pool.add(buffer);
+    }
+
+    private void runWriter(BlockingQueue<Operation> queue) {
+        while (true) {
+            Operation operation;
+            try {
+                operation = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                operation.part.handle(operation);
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in writer", e);
+            }
+        }
+    }
+
+    private enum Kind {
+        DATA, COMMIT, ABORT
+    }
+
+    private static final class Operation {
+        private final PartChannel part;
+        private final Kind kind;
+        private final ByteBuffer buffer;
+
+        Operation(PartChannel part, Kind kind, ByteBuffer buffer) {
+            this.part = part;
+            this.kind = kind;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Channel receiving the body of one part. Written by the reading thread, the file
+     * itself is only touched by the writer thread of the part.
+     */
+    public final class PartChannel implements WritableByteChannel {
+        private final File file;
+        private final BlockingQueue<Operation> queue;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private ByteBuffer current;
+        private boolean closed;
+        /** Set by the writer thread. */
+        private volatile IOException error;
+        /** Only used by the writer thread. */
+        private FileChannel channel;
+
+        PartChannel(File file, BlockingQueue<Operation> queue) {
+            this.file = file;
+            this.queue = queue;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (error != null) {
+                throw error;
+            }
+            int count = src.remaining();
+            while (src.hasRemaining()) {
+                if (current == null) {
+                    current = acquire();
+                }
+                int length = Math.min(current.remaining(), src.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + length);
+                current.put(slice);
+                src.position(src.position() + length);
+                if (!current.hasRemaining()) {
+                    flush();
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Queues the end of the part.
+         *
+         * @return completed once the part is entirely written and closed, or
+         *         exceptionally if a write failed. The file is deleted on failure.
+         */
+        public CompletableFuture<Void> commit() throws IOException {
+            if (!closed) {
+                flush();
+                enqueue(new Operation(this, Kind.COMMIT, null));
+                // Only once queued, otherwise close() must still discard the part
+                closed = true;
+            }
+            return done;
+        }
+
+        /**
+         * Discards the part, the file is deleted once pending writes are done. Also works
+         * on an interrupted thread, the usual case when a download is cancelled: the
+         * interrupt flag is restored once the discard is queued.
+         */
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean interrupted = Thread.interrupted();
+            try {
+                if (current != null) {
+                    release(current);
+                    current = null;
+                }
+            } finally {
+                // The writer deletes the file, so the discard must be queued in any case
+                while (true) {
+                    try {
+                        queue.put(new Operation(this, Kind.ABORT, null));
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /**
+         * Aborts the part unless it has been committed.
+         */
+        @Override
+        public void close() {
+            abort();
+        }
+
+        private void flush() throws InterruptedIOException {
+            if (current != null) {
+                ByteBuffer buffer = current;
+                // Released by enqueue if interrupted, so it must not be released again
+                current = null;
+                buffer.flip();
+                enqueue(new Operation(this, Kind.DATA, buffer));
+            }
+        }
+
+        private void enqueue(Operation operation) throws InterruptedIOException {
+            try {
+                queue.put(operation);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (operation.buffer != null) {
+                    release(operation.buffer);
+                }
+                throw new InterruptedIOException("Interrupted while queuing a write");
+            }
+        }
+
+        private void handle(Operation operation) {
+            switch (operation.kind) {
+                case DATA:
+                    try {
+                        if (error == null) {
+                            if (channel == null) {
+                                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                                        StandardOpenOption.CREATE);
+                            }
+                            int length = operation.buffer.remaining();
+                            while (operation.buffer.hasRemaining()) {
+                                channel.write(operation.buffer);
+                            }
+                            DownloadMetrics.add(BYTES_WRITTEN, length);
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } finally {
+                        release(operation.buffer);
+                    }
+                    break;
+                case COMMIT:
+                    closeChannel();
+                    if (error == null) {
+                        done.complete(null);
+                    } else {
+                        delete();
+                        done.completeExceptionally(error);
+                    }
+                    break;
+                default:
+                    closeChannel();
+                    delete();
+                    done.complete(null);
+                    break;
+            }
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+
+        private void delete() {
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("Cannot delete {}", file);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link CircuitBreaker} class.
+ */
+public class CircuitBreakerTest {
+
+  @Test
+  public void testBreakerOpensAfterConsecutiveFailures() throws Exception {
+    // Given
+    CircuitBreaker breaker = new CircuitBreaker("endpoint", 3, 1000);
+
+    // When
+    for (int i = 0; i < 3; i++) {
+      breaker.acquire(null, 0);
+      breaker.recordFailure(0);
+    }
+
+    // Then
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    try {
+      breaker.acquire(null, 500);
+      fail("Requests must fail fast while the breaker is open");
+    } catch (CircuitOpenException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testSingleTrialRequestClosesTheBreaker() throws Exception {
+    // Given
+    CircuitBreaker breaker = new CircuitBreaker("endpoint", 1, 1000);
+    breaker.acquire(null, 0);
+    breaker.recordFailure(0);
+
+    // When
+    breaker.acquire(null, 1000);
+    try {
+      breaker.acquire(null, 1000);
+      fail("Only one trial request is allowed");
+    } catch (CircuitOpenException e) {
+      // Expected
+    }
+    breaker.recordSuccess();
+
+    // Then
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.acquire(null, 1000);
+  }
+
+  @Test
+  public void testEndpointIsTheDicomStore() {
+    assertEquals("https://healthcare.googleapis.com/v1beta1/projects/p/locations/l/datasets/d/dicomStores/s",
+        CircuitBreaker.getEndpoint("https://healthcare.googleapis.com/v1beta1/projects/p/locations/l"
+            + "/datasets/d/dicomStores/s/dicomWeb/studies"));
+    assertEquals("https://healthcare.googleapis.com",
+        CircuitBreaker.getEndpoint("https://healthcare.googleapis.com/v1beta1/projects/p/locations"));
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ExponentialBackoff} class.
+ */
+public class ExponentialBackoffTest {
+
+  @Test
+  public void testDelayIsJitteredBelowTheExponentialCap() {
+    // Given
+    ExponentialBackoff backoff = new ExponentialBackoff(10, 100, 1000, new Random(42));
+    IOException reset = new SocketException("Connection reset");
+
+    // When
+    for (int attempt = 1; attempt < 10; attempt++) {
+      long delay = backoff.getDelay(attempt, reset);
+
+      // Then
+      assertTrue(delay >= 0);
+      assertTrue(delay <= Math.min(1000, 100L << (attempt - 1)));
+    }
+    assertEquals(-1, backoff.getDelay(10, reset));
+  }
+
+  @Test
+  public void testRetryAfterIsHonoured() {
+    // Given
+    ExponentialBackoff backoff = new ExponentialBackoff(4, 100, 5000, new Random(42));
+    HttpHeaders headers = new HttpHeaders();
+    headers.setRetryAfter("3");
+    IOException tooManyRequests = new HttpResponseException.Builder(
+        ExponentialBackoff.STATUS_CODE_TOO_MANY_REQUESTS, "Too Many Requests", headers).build();
+
+    // When
+    long delay = backoff.getDelay(1, tooManyRequests);
+
+    // Then
+    assertEquals(3000, delay);
+    headers.setRetryAfter("60");
+    assertEquals(-1, backoff.getDelay(1, new HttpResponseException.Builder(
+        ExponentialBackoff.STATUS_CODE_TOO_MANY_REQUESTS, "Too Many Requests", headers).build()));
+  }
+
+  @Test
+  public void testPermanentFailuresAreNotRetried() {
+    // Given
+    ExponentialBackoff backoff = new ExponentialBackoff(4, 100, 5000);
+
+    // Then
+    assertEquals(-1, backoff.getDelay(1, new HttpResponseException.Builder(
+        HttpStatusCodes.STATUS_CODE_NOT_FOUND, "Not Found", new HttpHeaders()).build()));
+    assertEquals(-1, backoff.getDelay(1, new InterruptedIOException()));
+    assertEquals(-1, ExponentialBackoff.getRetryAfter("soon"));
+  }
+}
@@ -47,6 +47,7 @@ import org.weasis.dicom.google.api.model.Dataset;
 import org.weasis.dicom.google.api.model.DicomStore;
 import org.weasis.dicom.google.api.model.Location;
 import org.weasis.dicom.google.api.model.ProjectDescriptor;
+import org.weasis.dicom.google.api.model.SeriesModel;
 import org.weasis.dicom.google.api.model.StudyQuery;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 
@@ -57,6 +58,7 @@ import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpResponseException.Builder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
@@ -120,6 +122,62 @@ public class GoogleAPIClientTest {
         Mockito.eq(url), Mockito.any());
   }
   
+  /**
+   * Tests {@link GoogleAPIClient#executeGetRequest(String)} method for a transient error.
+   */
+  @Test
+  public void testTransientErrorIsRetried() throws Exception {
+    // Given
+    final String url = "https://test.com/retry";
+    final GoogleAPIClient client = PowerMockito.spy(
+        GoogleAPIClientFactory.getInstance().createGoogleClient());
+    client.setRetryPolicy((attempt, failure) -> attempt < 3 ? 0 : -1);
+
+    // When
+    Mockito.doReturn("TEST-TOKEN-1").when(client).signIn();
+    PowerMockito.doAnswer(new Answer<HttpResponse>() {
+      int failures = 2;
+      @Override public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        if (failures-- > 0) {
+          throw new Builder(HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE, "TEST", new HttpHeaders()).build();
+        }
+        return null;
+      }
+    }).when(client, "doExecuteGetRequest", Mockito.anyString(), Mockito.any());
+
+    client.executeGetRequest(url);
+
+    // Then
+    Mockito.verify(client, Mockito.never()).refresh();
+    PowerMockito.verifyPrivate(client, Mockito.times(3)).invoke("doExecuteGetRequest",
+        Mockito.eq(url), Mockito.any());
+  }
+
+  /**
+   * Tests that a caller retrying on its own receives the transient error at once.
+   */
+  @Test
+  public void testTransientErrorIsReturnedWithoutRetryPolicy() throws Exception {
+    // Given
+    final String url = "https://test.com/no-retry";
+    final GoogleAPIClient client = PowerMockito.spy(
+        GoogleAPIClientFactory.getInstance().createGoogleClient());
+    Mockito.doReturn("TEST-TOKEN-1").when(client).signIn();
+    PowerMockito.doThrow(new Builder(429, "TEST", new HttpHeaders()).build())
+        .when(client, "doExecuteGetRequest", Mockito.anyString(), Mockito.any());
+
+    // When
+    try {
+      client.executeGetRequest(url, new HttpHeaders(), RetryPolicy.NONE);
+      fail("Expected the throttling response");
+    } catch (HttpResponseException e) {
+      // Then
+      assertEquals(429, e.getStatusCode());
+    }
+    PowerMockito.verifyPrivate(client, Mockito.times(1)).invoke("doExecuteGetRequest",
+        Mockito.eq(url), Mockito.any());
+  }
+
   @Test
   public void testNullQuery() throws Exception {
       assertEquals("?includefield=all",GoogleAPIClient.formatQuery(null));
@@ -354,4 +412,48 @@ public class GoogleAPIClientTest {
     // Then
     assertEquals(2, dicomStoreList.size());
   }
+
+  @Test
+  public void testFetchSeriesShouldReturnSeriesOfStudy() throws Exception {
+    // Given
+    final GoogleAPIClient client = PowerMockito.spy(
+        GoogleAPIClientFactory.getInstance().createGoogleClient());
+    HttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            response.setStatusCode(200);
+            response.setContentType(Json.MEDIA_TYPE);
+            response.setContent("[\n"
+                + "  {\"0020000E\": {\"vr\": \"UI\", \"Value\": [\"1.2.3.1\"]},\n"
+                + "   \"00200011\": {\"vr\": \"IS\", \"Value\": [2]}},\n"
+                + "  {\"0020000E\": {\"vr\": \"UI\", \"Value\": [\"1.2.3.2\"]},\n"
+                + "   \"00080060\": {\"vr\": \"CS\", \"Value\": [\"CT\"]}}\n"
+                + "]");
+            return response;
+          }
+        };
+      }
+    };
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+    HttpResponse response = request.execute();
+    PowerMockito.doReturn(response).when(client, "executeGetRequest", Mockito.any());
+    ProjectDescriptor projectDescriptor = new ProjectDescriptor("Test-1", "1");
+    Location location = new Location(projectDescriptor, "projects/1/locations/1", "1");
+    Dataset dataset = new Dataset(location, "Test-1");
+    DicomStore store = new DicomStore(dataset, "Test-1");
+
+    // When
+    List<SeriesModel> seriesList = client.fetchSeries(store, "1.2.3");
+
+    // Then
+    assertEquals(2, seriesList.size());
+    assertEquals("1.2.3.1", seriesList.get(0).getSeriesInstanceUID().getFirstValue().get());
+    assertEquals("2", seriesList.get(0).getSeriesNumber().getFirstValue().get());
+    assertEquals("CT", seriesList.get(1).getModality().getFirstValue().get());
+  }
 }
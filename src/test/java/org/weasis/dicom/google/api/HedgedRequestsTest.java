@@ -0,0 +1,138 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.junit.Test;
+import org.weasis.dicom.google.explorer.download.DownloadMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link HedgedRequests} class.
+ */
+public class HedgedRequestsTest {
+
+  @Test
+  public void testSlowRequestIsHedgedAndTheFirstResponseWins() throws Exception {
+    // Given
+    HedgedRequests hedged = new HedgedRequests(95, 100, Executors.newCachedThreadPool());
+    learnFastLatency(hedged, "studies");
+    long sent = DownloadMetrics.getCounter(HedgedRequests.HEDGE_SENT);
+    long won = DownloadMetrics.getCounter(HedgedRequests.HEDGE_WON);
+    AtomicInteger calls = new AtomicInteger();
+
+    // When, the first request hangs
+    long start = System.currentTimeMillis();
+    String data = hedged.get("studies", () -> {
+      if (calls.incrementAndGet() == 1) {
+        sleep(10000);
+        return response("slow");
+      }
+      return response("fast");
+    });
+
+    // Then
+    assertEquals("fast", data);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(sent + 1, DownloadMetrics.getCounter(HedgedRequests.HEDGE_SENT));
+    assertEquals(won + 1, DownloadMetrics.getCounter(HedgedRequests.HEDGE_WON));
+  }
+
+  @Test
+  public void testHedgesAreLimitedByTheBudget() throws Exception {
+    // Given
+    HedgedRequests hedged = new HedgedRequests(95, 0, Executors.newCachedThreadPool());
+    learnFastLatency(hedged, "series");
+    long denied = DownloadMetrics.getCounter(HedgedRequests.HEDGE_DENIED);
+    AtomicInteger calls = new AtomicInteger();
+
+    // When
+    String data = hedged.get("series", () -> {
+      calls.incrementAndGet();
+      sleep(200);
+      return response("slow");
+    });
+
+    // Then
+    assertEquals("slow", data);
+    assertEquals(1, calls.get());
+    assertEquals(denied + 1, DownloadMetrics.getCounter(HedgedRequests.HEDGE_DENIED));
+  }
+
+  @Test
+  public void testPercentileNeedsEnoughHistory() {
+    // Given
+    HedgedRequests.LatencyHistory history = new HedgedRequests.LatencyHistory(HedgedRequests.HISTORY_SIZE);
+    for (int i = 1; i < HedgedRequests.MIN_SAMPLES; i++) {
+      history.add(i);
+    }
+    assertEquals(-1, history.getPercentile(95));
+
+    // When
+    for (int i = HedgedRequests.MIN_SAMPLES; i <= 100; i++) {
+      history.add(i);
+    }
+
+    // Then
+    assertEquals(95, history.getPercentile(95));
+  }
+
+  private static void learnFastLatency(HedgedRequests hedged, String kind) throws IOException {
+    for (int i = 0; i < HedgedRequests.MIN_SAMPLES; i++) {
+      hedged.get(kind, () -> response("[]"));
+    }
+  }
+
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private static HttpResponse response(String content) throws IOException {
+    MockHttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            response.setStatusCode(200);
+            response.setContentType(Json.MEDIA_TYPE);
+            response.setContent(content);
+            return response;
+          }
+        };
+      }
+    };
+    return transport.createRequestFactory().buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).execute();
+  }
+}
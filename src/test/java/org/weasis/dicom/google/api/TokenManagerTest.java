@@ -0,0 +1,108 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.api;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link TokenManager} class.
+ */
+public class TokenManagerTest {
+
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  @Test
+  public void testConcurrentCallersShareOneRefresh() throws Exception {
+    // Given
+    TestCredential credential = new TestCredential(System.currentTimeMillis() + HOUR);
+    TokenManager manager = new TokenManager(credential);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    // When
+    List<Future<String>> tokens = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      tokens.add(executor.submit(manager::refresh));
+    }
+    Thread.sleep(100);
+    credential.release.countDown();
+
+    // Then
+    for (Future<String> token : tokens) {
+      assertEquals("TOKEN-2", token.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, credential.refreshes.get());
+    manager.close();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testTokenIsRefreshedBeforeExpiryWithoutBlocking() throws Exception {
+    // Given, a token expiring within the refresh margin
+    TestCredential credential = new TestCredential(System.currentTimeMillis() + TokenManager.REFRESH_MARGIN / 2);
+
+    // When
+    TokenManager manager = new TokenManager(credential);
+
+    // Then, the valid token is returned while the refresh is running
+    assertEquals("TOKEN-1", manager.getAccessToken());
+    credential.release.countDown();
+    for (int i = 0; i < 50 && !"TOKEN-2".equals(manager.peekAccessToken()); i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("TOKEN-2", manager.getAccessToken());
+    assertEquals(1, credential.refreshes.get());
+    manager.close();
+  }
+
+  /**
+   * Credential whose refresh waits for the test.
+   */
+  private static final class TestCredential extends Credential {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    TestCredential(long expiration) {
+      super(BearerToken.authorizationHeaderAccessMethod());
+      setAccessToken("TOKEN-1");
+      setExpirationTimeMilliseconds(expiration);
+    }
+
+    @Override
+    protected TokenResponse executeRefreshToken() throws IOException {
+      refreshes.incrementAndGet();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new TokenResponse().setAccessToken("TOKEN-2").setExpiresInSeconds(3600L);
+    }
+  }
+}
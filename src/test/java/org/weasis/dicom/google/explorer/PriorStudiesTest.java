@@ -0,0 +1,49 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link PriorStudies} class.
+ */
+public class PriorStudiesTest {
+
+  @Test
+  public void testPriorsWithSameModalityComeFirstMostRecentFirst() {
+    // Given
+    LocalDate date = LocalDate.of(2019, 6, 1);
+    List<PriorStudies.Candidate> candidates = Arrays.asList(
+        new PriorStudies.Candidate("current", date, Collections.singletonList("CT")),
+        new PriorStudies.Candidate("old-ct", LocalDate.of(2015, 1, 1), Collections.singletonList("CT")),
+        new PriorStudies.Candidate("recent-mr", LocalDate.of(2019, 5, 1), Collections.singletonList("MR")),
+        new PriorStudies.Candidate("recent-ct", LocalDate.of(2018, 1, 1), Arrays.asList("CT", "SR")),
+        new PriorStudies.Candidate("later-ct", LocalDate.of(2020, 1, 1), Collections.singletonList("CT")),
+        new PriorStudies.Candidate("undated-ct", null, Collections.singletonList("CT")));
+
+    // When
+    List<String> ranked = PriorStudies.rank(candidates, "current", date, Collections.singletonList("CT"));
+
+    // Then
+    assertEquals(Arrays.asList("recent-ct", "old-ct", "later-ct", "undated-ct", "recent-mr"), ranked);
+  }
+}
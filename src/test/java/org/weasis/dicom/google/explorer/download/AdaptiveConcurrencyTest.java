@@ -0,0 +1,160 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Test;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link AdaptiveConcurrency} class.
+ */
+public class AdaptiveConcurrencyTest {
+
+  private static final long MB = 1024 * 1024;
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testLimitGrowsWhileThroughputDoesNotDrop() throws Exception {
+    // Given
+    AdaptiveConcurrency.StoreLimit limit = new AdaptiveConcurrency(2, 16).forStore("store");
+
+    // When, two epochs of two saturated requests at a steady speed
+    for (int epoch = 0; epoch < 2 && limit.getLimit() == 2; epoch++) {
+      runRequests(limit, 2, epoch * SECOND);
+    }
+
+    // Then
+    assertEquals(3, limit.getLimit());
+    assertEquals(1, DownloadMetrics.getCounter("concurrency.store.increase"));
+  }
+
+  @Test
+  public void testThrottledResponsesHalveTheLimitOnce() throws Exception {
+    // Given
+    AdaptiveConcurrency.StoreLimit limit = new AdaptiveConcurrency(8, 16).forStore("throttled");
+    for (int i = 0; i < 3; i++) {
+      limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    }
+    IOException tooManyRequests = new HttpResponseException.Builder(
+        AdaptiveConcurrency.STATUS_CODE_TOO_MANY_REQUESTS, "Too Many Requests", new HttpHeaders()).build();
+
+    // When, all the requests in flight fail
+    for (int i = 0; i < 3; i++) {
+      limit.release(0, 0, 0, tooManyRequests, SECOND);
+    }
+
+    // Then
+    assertEquals(4, limit.getLimit());
+    assertEquals(0, limit.getInFlight());
+    assertEquals(1, DownloadMetrics.getCounter("concurrency.throttled.throttled"));
+    assertEquals(4, DownloadMetrics.getCounter("concurrency.throttled.limit"));
+  }
+
+  @Test
+  public void testRisingLatencyHalvesTheLimit() throws Exception {
+    // Given
+    AdaptiveConcurrency.StoreLimit limit = new AdaptiveConcurrency(4, 16).forStore("slow");
+    limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    limit.release(0, SECOND / 10, MB, null, SECOND / 10);
+
+    // When, the same amount of data takes ten times longer
+    limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    limit.release(SECOND, SECOND, MB, null, 2 * SECOND);
+
+    // Then
+    assertEquals(2, limit.getLimit());
+    assertEquals(1, DownloadMetrics.getCounter("concurrency.slow.latency"));
+  }
+
+  @Test
+  public void testLocalWaitsDoNotCountAsLatency() throws Exception {
+    // Given
+    AdaptiveConcurrency.StoreLimit limit = new AdaptiveConcurrency(4, 16).forStore("local");
+    limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    limit.release(0, SECOND / 10, MB, null, SECOND / 10);
+
+    // When, the request waited for the budget and the bandwidth limiter for seconds
+    limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    limit.release(SECOND, SECOND / 10, MB, null, 5 * SECOND);
+
+    // Then
+    assertEquals(4, limit.getLimit());
+    assertEquals(0, DownloadMetrics.getCounter("concurrency.local.latency"));
+  }
+
+  @Test
+  public void testWaitingRequestsGetSlotsByPriority() throws Exception {
+    // Given, a store at its limit
+    AdaptiveConcurrency.StoreLimit limit = new AdaptiveConcurrency(1, 1).forStore("priority");
+    limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+
+    // When
+    CompletableFuture<Long> prefetch = limit.acquire(Priority.PREFETCH, new CancellationToken());
+    CompletableFuture<Long> interactive = limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+
+    // Then, the requests wait without a thread and the interactive one is served first
+    assertEquals(2, limit.getWaiting());
+    limit.release(0, 0, 0, null, SECOND);
+    assertTrue(interactive.isDone());
+    assertFalse(prefetch.isDone());
+    limit.release(0, 0, 0, null, SECOND);
+    assertTrue(prefetch.isDone());
+    assertEquals(1, limit.getInFlight());
+  }
+
+  @Test
+  public void testCancelledRequestLeavesTheQueue() throws Exception {
+    // Given, a store at its limit
+    AdaptiveConcurrency.StoreLimit limit = new AdaptiveConcurrency(1, 1).forStore("cancelled");
+    limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    CancellationToken cancellation = new CancellationToken();
+    CompletableFuture<Long> waiting = limit.acquire(Priority.PREFETCH, cancellation);
+
+    // When
+    cancellation.cancel();
+
+    // Then
+    try {
+      waiting.get();
+      fail("Expected the wait to be cancelled");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DownloadCancelledException);
+    }
+    assertEquals(0, limit.getWaiting());
+    limit.release(0, 0, 0, null, SECOND);
+    assertEquals(0, limit.getInFlight());
+  }
+
+  private static void runRequests(AdaptiveConcurrency.StoreLimit limit, int count, long start) throws Exception {
+    for (int i = 0; i < count; i++) {
+      limit.acquire(Priority.INTERACTIVE, new CancellationToken());
+    }
+    for (int i = 0; i < count; i++) {
+      limit.release(start, SECOND / 10, MB, null, start + SECOND / 10);
+    }
+  }
+}
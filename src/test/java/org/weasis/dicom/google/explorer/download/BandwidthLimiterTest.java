@@ -0,0 +1,142 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.After;
+import org.junit.Test;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BandwidthLimiter} class.
+ */
+public class BandwidthLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @After
+  public void tearDown() {
+    System.clearProperty(DownloadSettings.BANDWIDTH + "total");
+    System.clearProperty(DownloadSettings.BANDWIDTH + "prefetch");
+    System.clearProperty(DownloadSettings.BANDWIDTH_BURST);
+  }
+
+  @Test
+  public void testBucketMakesCallerWaitForItsDebt() {
+    // Given
+    BandwidthLimiter.TokenBucket bucket = new BandwidthLimiter.TokenBucket();
+    bucket.reserve(1000, 1000, 1000, 0, 0);
+
+    // When
+    long wait = bucket.reserve(500, 1000, 1000, 0, 0);
+
+    // Then
+    assertEquals(SECOND / 2, wait);
+    assertEquals(0, bucket.reserve(500, 1000, 1000, 0, 2 * SECOND));
+  }
+
+  @Test
+  public void testLimitChangesAtRuntime() {
+    // Given, 8 Mbit/s is one megabyte per second
+    System.setProperty(DownloadSettings.BANDWIDTH + "total", "8");
+    System.setProperty(DownloadSettings.BANDWIDTH_BURST, "0");
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    assertEquals(SECOND, limiter.reserve(Priority.INTERACTIVE, null, 2000000, 0));
+
+    // When
+    System.setProperty(DownloadSettings.BANDWIDTH + "total", "0");
+
+    // Then
+    assertEquals(0, limiter.reserve(Priority.INTERACTIVE, null, 2000000, 0));
+  }
+
+  @Test
+  public void testResponseIsReadAsIsWithoutLimits() {
+    // Given
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    InputStream in = new ByteArrayInputStream(new byte[0]);
+
+    // When
+    InputStream unlimited = limiter.wrap(in, Priority.INTERACTIVE, "store", new CancellationToken());
+    System.setProperty(DownloadSettings.BANDWIDTH + "prefetch", "10");
+    InputStream limited = limiter.wrap(in, Priority.INTERACTIVE, "store", new CancellationToken());
+
+    // Then, interactive reads are tracked as soon as another class is limited
+    assertSame(in, unlimited);
+    assertNotSame(in, limited);
+  }
+
+  @Test
+  public void testOnlyConfiguredLimitsCount() {
+    // Given
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    assertFalse(limiter.isLimited(Priority.INTERACTIVE, "store"));
+
+    // When
+    System.setProperty(DownloadSettings.BANDWIDTH + "prefetch", "10");
+
+    // Then
+    assertFalse(limiter.isLimited(Priority.INTERACTIVE, "store"));
+    assertTrue(limiter.isLimited(Priority.PREFETCH, "store"));
+  }
+
+  @Test
+  public void testPrefetchUsesIdleBandwidthButNotTheInteractiveBurst() {
+    // Given
+    System.setProperty(DownloadSettings.BANDWIDTH + "total", "8");
+    System.setProperty(DownloadSettings.BANDWIDTH + "prefetch", "0");
+    System.setProperty(DownloadSettings.BANDWIDTH_BURST, "2");
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    long burst = 2 * 1024 * 1024;
+
+    assertEquals(0, limiter.reserve(Priority.PREFETCH, null, 1000000, 0));
+
+    // When
+    int chunk = BandwidthLimiter.MAX_CHUNK;
+    long prefetchWait = limiter.reserve(Priority.PREFETCH, null, chunk, 0);
+    long interactiveWait = limiter.reserve(Priority.INTERACTIVE, null, burst - 1000000 - chunk, 0);
+
+    // Then, prefetch waits for new tokens while interactive bursts right away
+    assertTrue(prefetchWait > 0);
+    assertEquals(0, interactiveWait);
+  }
+
+  @Test
+  public void testPrefetchIsLimitedWhileInteractiveDataFlows() {
+    // Given
+    System.setProperty(DownloadSettings.BANDWIDTH + "prefetch", "8");
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    long now = 10 * SECOND;
+    limiter.reserve(Priority.PREFETCH, null, 1000000, now);
+    assertEquals(0, limiter.reserve(Priority.PREFETCH, null, 1000000, now));
+
+    // When
+    limiter.reserve(Priority.INTERACTIVE, null, 1000, now);
+    limiter.reserve(Priority.PREFETCH, null, 1000000, now);
+    long wait = limiter.reserve(Priority.PREFETCH, null, 1000000, now);
+
+    // Then
+    assertEquals(SECOND, wait);
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CancellationToken} class.
+ */
+public class CancellationTokenTest {
+
+  @Test
+  public void testCancelAbortsRegisteredRequests() {
+    // Given
+    CancellationToken token = new CancellationToken();
+    AtomicInteger aborted = new AtomicInteger();
+    Runnable finished = aborted::incrementAndGet;
+    token.register(aborted::incrementAndGet);
+    token.register(finished);
+    token.unregister(finished);
+
+    // When
+    token.cancel();
+
+    // Then
+    assertTrue(token.isCancelled());
+    assertEquals(1, aborted.get());
+  }
+
+  @Test
+  public void testRequestRegisteredAfterCancelIsAbortedImmediately() {
+    // Given
+    CancellationToken token = new CancellationToken();
+    AtomicInteger aborted = new AtomicInteger();
+    token.cancel();
+
+    // When
+    token.register(aborted::incrementAndGet);
+
+    // Then
+    assertEquals(1, aborted.get());
+  }
+
+  @Test(expected = DownloadCancelledException.class)
+  public void testThrowIfCancelled() throws Exception {
+    CancellationToken token = new CancellationToken();
+    token.cancel();
+    token.throwIfCancelled();
+  }
+}
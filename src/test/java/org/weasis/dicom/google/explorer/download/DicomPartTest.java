@@ -0,0 +1,54 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DicomPart} class.
+ */
+public class DicomPartTest {
+
+  @Test
+  public void testPartIsClassifiedFromContentType() {
+    assertTrue(part("Content-Type: application/dicom; transfer-syntax=1.2.840.10008.1.2.1\r\n").isDicom());
+    assertTrue(part("Content-Type: APPLICATION/DICOM\r\n").isDicom());
+    assertTrue(part("Content-Length: 12\r\n").isDicom());
+    assertFalse(part("Content-Type: application/octet-stream\r\n").isDicom());
+  }
+
+  @Test
+  public void testUidsAreTakenFromContentLocation() {
+    // Given
+    DicomPart part = part("Content-Type: application/dicom\r\n"
+        + "Content-Location: https://host/dicomWeb/studies/1.2/series/1.2.3/instances/1.2.3.4\r\n");
+
+    // Then
+    assertEquals("1.2.3", part.getSeriesInstanceUID());
+    assertEquals("1.2.3.4", part.getSopInstanceUID());
+  }
+
+  private static DicomPart part(String rawHeaders) {
+    Map<String, String> headers = DicomPart.parseHeaders(rawHeaders);
+    return new DicomPart(new File("missing.dcm"), headers, 0, 0);
+  }
+}
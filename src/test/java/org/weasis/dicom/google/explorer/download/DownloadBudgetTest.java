@@ -0,0 +1,117 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link DownloadBudget} class.
+ */
+public class DownloadBudgetTest {
+
+  @Test
+  public void testPrefetchLeavesHalfOfTheBudgetToInteractive() throws Exception {
+    // Given
+    DownloadBudget budget = new DownloadBudget(4);
+    CancellationToken cancellation = new CancellationToken();
+    budget.acquire(Priority.PREFETCH, cancellation);
+    budget.acquire(Priority.PREFETCH, cancellation);
+
+    // When
+    CompletableFuture<DownloadBudget.Permit> third = acquireAsync(budget, Priority.PREFETCH, cancellation);
+
+    // Then
+    assertNotCompleted(third);
+    budget.acquire(Priority.INTERACTIVE, cancellation);
+    budget.acquire(Priority.INTERACTIVE, cancellation);
+    assertEquals(2, budget.getConnections(Priority.PREFETCH));
+    assertEquals(2, budget.getConnections(Priority.INTERACTIVE));
+    cancellation.cancel();
+  }
+
+  @Test
+  public void testWaitingRequestStartsWhenPermitIsReleased() throws Exception {
+    // Given
+    DownloadBudget budget = new DownloadBudget(1);
+    CancellationToken cancellation = new CancellationToken();
+    DownloadBudget.Permit permit = budget.acquire(Priority.INTERACTIVE, cancellation);
+    CompletableFuture<DownloadBudget.Permit> waiting = acquireAsync(budget, Priority.INTERACTIVE, cancellation);
+    assertNotCompleted(waiting);
+
+    // When
+    permit.close();
+    permit.close();
+
+    // Then
+    waiting.get(5, TimeUnit.SECONDS).close();
+    assertEquals(0, budget.getConnections(Priority.INTERACTIVE));
+  }
+
+  @Test
+  public void testCancelledRequestStopsWaiting() throws Exception {
+    // Given
+    DownloadBudget budget = new DownloadBudget(1);
+    budget.acquire(Priority.INTERACTIVE, new CancellationToken());
+    CancellationToken cancellation = new CancellationToken();
+    CompletableFuture<DownloadBudget.Permit> waiting = acquireAsync(budget, Priority.INTERACTIVE, cancellation);
+    assertNotCompleted(waiting);
+
+    // When
+    cancellation.cancel();
+
+    // Then
+    try {
+      waiting.get(5, TimeUnit.SECONDS);
+      fail("Cancelled request acquired a permit");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DownloadCancelledException);
+    }
+  }
+
+  private static CompletableFuture<DownloadBudget.Permit> acquireAsync(DownloadBudget budget, Priority priority,
+      CancellationToken cancellation) {
+    CompletableFuture<DownloadBudget.Permit> future = new CompletableFuture<>();
+    Thread thread = new Thread(() -> {
+      try {
+        future.complete(budget.acquire(priority, cancellation));
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return future;
+  }
+
+  private static void assertNotCompleted(CompletableFuture<?> future) throws Exception {
+    try {
+      future.get(100, TimeUnit.MILLISECONDS);
+      fail("Request should wait for the budget");
+    } catch (TimeoutException e) {
+      assertFalse(future.isDone());
+    }
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DownloadScheduler} class.
+ */
+public class DownloadSchedulerTest {
+
+  @Test
+  public void testInteractiveTaskRunsBeforeQueuedPrefetch() throws Exception {
+    // Given
+    DownloadScheduler scheduler = new DownloadScheduler(limits(1, 1));
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    scheduler.submit(Priority.INTERACTIVE, () -> await(release));
+    scheduler.submit(Priority.PREFETCH, () -> await(release));
+    scheduler.submit(Priority.PREFETCH, () -> order.add("prefetch"));
+
+    // When
+    Future<?> interactive = scheduler.submit(Priority.INTERACTIVE, () -> order.add("interactive"));
+    assertEquals(1, scheduler.getQueueDepth(Priority.INTERACTIVE));
+    assertEquals(1, scheduler.getQueueDepth(Priority.PREFETCH));
+    release.countDown();
+    interactive.get(5, TimeUnit.SECONDS);
+
+    // Then
+    waitUntil(() -> order.size() == 2);
+    assertEquals("interactive", order.get(0));
+  }
+
+  @Test
+  public void testPrefetchCannotStarveInteractive() throws Exception {
+    // Given
+    DownloadScheduler scheduler = new DownloadScheduler(limits(1, 1));
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 5; i++) {
+      scheduler.submit(Priority.PREFETCH, () -> await(release));
+    }
+
+    // When
+    Future<?> interactive = scheduler.submit(Priority.INTERACTIVE, () -> { });
+
+    // Then
+    interactive.get(5, TimeUnit.SECONDS);
+    assertEquals(1, scheduler.getRunning(Priority.PREFETCH));
+    assertEquals(4, scheduler.getQueueDepth(Priority.PREFETCH));
+    release.countDown();
+  }
+
+  @Test
+  public void testCancelledTaskIsNotRun() throws Exception {
+    // Given
+    DownloadScheduler scheduler = new DownloadScheduler(limits(1, 0));
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    scheduler.submit(Priority.INTERACTIVE, () -> await(release));
+    Future<?> cancelled = scheduler.submit(Priority.INTERACTIVE, () -> order.add("cancelled"));
+    Future<?> last = scheduler.submit(Priority.INTERACTIVE, () -> order.add("last"));
+
+    // When
+    cancelled.cancel(false);
+    release.countDown();
+    last.get(5, TimeUnit.SECONDS);
+
+    // Then
+    assertEquals(Collections.singletonList("last"), order);
+    assertTrue(cancelled.isCancelled());
+  }
+
+  private static Map<Priority, Integer> limits(int interactive, int prefetch) {
+    Map<Priority, Integer> limits = new EnumMap<>(Priority.class);
+    limits.put(Priority.INTERACTIVE, interactive);
+    limits.put(Priority.PREFETCH, prefetch);
+    limits.put(Priority.BACKGROUND, 0);
+    return limits;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.weasis.dicom.codec.DicomMediaIO;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures how {@link HeaderParser} scales with the number of threads.
+ *
+ * <p>Usage: {@code HeaderParserBenchmark <directory of DICOM files> [iterations]}. Run it
+ * with the test classpath. Each thread count is warmed up once, then the mean over the
+ * iterations is printed. Run it twice, or drop the OS page cache between runs, to
+ * tell CPU-bound parsing from disk-bound parsing.
+ */
+public class HeaderParserBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: HeaderParserBenchmark <dicom dir> [iterations]");
+      System.exit(1);
+    }
+    File[] children = new File(args[0]).listFiles(File::isFile);
+    if (children == null || children.length == 0) {
+      System.err.println("No files in " + args[0]);
+      System.exit(1);
+    }
+    List<File> files = Arrays.asList(children);
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    List<Integer> threadCounts = new ArrayList<>();
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads < cores; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(cores);
+
+    System.out.printf("%d files, %d iterations%n", files.size(), iterations);
+    System.out.printf("%8s %12s %12s %8s%n", "threads", "mean ms", "files/s", "speedup");
+    double baseline = 0;
+    for (int threads : threadCounts) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        run(files, executor);
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+          long start = System.nanoTime();
+          run(files, executor);
+          total += System.nanoTime() - start;
+        }
+        double meanMs = total / 1e6 / iterations;
+        if (baseline == 0) {
+          baseline = meanMs;
+        }
+        System.out.printf("%8d %12.1f %12.0f %8.2f%n", threads, meanMs, files.size() * 1000 / meanMs,
+            baseline / meanMs);
+      } finally {
+        executor.shutdown();
+      }
+    }
+  }
+
+  private static void run(List<File> files, ExecutorService executor) throws InterruptedException {
+    List<DicomMediaIO> loaders = HeaderParser.parse(files, file -> {
+      DicomMediaIO loader = new DicomMediaIO(file);
+      return loader.isReadableDicom() ? loader : null;
+    }, executor);
+    loaders.forEach(DicomMediaIO::reset);
+  }
+}
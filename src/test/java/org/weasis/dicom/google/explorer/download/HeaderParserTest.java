@@ -0,0 +1,68 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link HeaderParser} class.
+ */
+public class HeaderParserTest {
+
+  @Test
+  public void testResultsKeepInputOrder() throws Exception {
+    // Given
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      files.add(new File("instance" + i));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    // When
+    List<String> results;
+    try {
+      results = HeaderParser.parse(files, file -> {
+        sleep(ThreadLocalRandom.current().nextInt(5));
+        // Unreadable files are skipped
+        return file.getName().endsWith("7") ? null : file.getName();
+      }, executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    // Then
+    assertEquals(45, results.size());
+    assertEquals("instance0", results.get(0));
+    assertEquals("instance8", results.get(7));
+    assertEquals("instance49", results.get(44));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
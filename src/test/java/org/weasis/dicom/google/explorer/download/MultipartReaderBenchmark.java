@@ -0,0 +1,141 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.apache.commons.fileupload.MultipartStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Compares the throughput and allocation rate of {@link MultipartReader} with
+ * commons-fileupload {@code MultipartStream} on an in-memory study.
+ *
+ * <p>Usage: {@code MultipartReaderBenchmark [study MB] [instance KB] [iterations]}. Run it
+ * with the test classpath. Bodies are discarded, so only parsing is measured.
+ * Allocations are read from the HotSpot {@code ThreadMXBean}.
+ */
+public class MultipartReaderBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int studyMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int instanceKb = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    List<byte[]> bodies = new ArrayList<>();
+    Random random = new Random(1);
+    for (long total = 0; total < studyMb * 1024L * 1024L; total += instanceKb * 1024L) {
+      byte[] body = new byte[instanceKb * 1024];
+      random.nextBytes(body);
+      bodies.add(body);
+    }
+    byte[] payload = MultipartReaderTest.multipart("", bodies);
+    System.out.printf("%d parts, %.1f MB, %d iterations%n", bodies.size(), payload.length / 1e6, iterations);
+
+    // Warm up both parsers
+    for (int i = 0; i < 3; i++) {
+      parseWithMultipartStream(payload);
+      parseWithMultipartReader(payload);
+    }
+    report("MultipartStream", payload.length, iterations, () -> parseWithMultipartStream(payload));
+    report("MultipartReader", payload.length, iterations, () -> parseWithMultipartReader(payload));
+  }
+
+  private static void report(String name, int length, int iterations, Parser parser) throws IOException {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long allocated = threadBean.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    long parts = 0;
+    for (int i = 0; i < iterations; i++) {
+      parts += parser.parse();
+    }
+    long elapsed = System.nanoTime() - start;
+    allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+    double seconds = elapsed / 1e9;
+    System.out.printf("%-16s %10.1f MB/s %12.1f KB allocated/iteration %8d parts%n", name,
+        length / 1e6 * iterations / seconds, allocated / 1024.0 / iterations, parts / iterations);
+  }
+
+  private static int parseWithMultipartStream(byte[] payload) throws IOException {
+    MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(payload),
+        MultipartReaderTest.BOUNDARY.getBytes(StandardCharsets.ISO_8859_1), 4096, null);
+    int parts = 0;
+    boolean nextPart = multipart.skipPreamble();
+    while (nextPart) {
+      multipart.readHeaders();
+      CRC32 crc = new CRC32();
+      multipart.readBodyData(new OutputStream() {
+        @Override
+        public void write(int b) {
+          crc.update(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          crc.update(b, off, len);
+        }
+      });
+      parts++;
+      nextPart = multipart.readBoundary();
+    }
+    return parts;
+  }
+
+  private static int parseWithMultipartReader(byte[] payload) throws IOException {
+    MultipartReader reader = new MultipartReader(new ByteArrayInputStream(payload),
+        MultipartReaderTest.BOUNDARY.getBytes(StandardCharsets.ISO_8859_1));
+    WritableByteChannel discard = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        int remaining = src.remaining();
+        src.position(src.limit());
+        return remaining;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    int parts = 0;
+    boolean nextPart = reader.skipPreamble();
+    while (nextPart) {
+      reader.readHeaders();
+      reader.readBodyData(discard, new CRC32());
+      parts++;
+      nextPart = reader.readBoundary();
+    }
+    return parts;
+  }
+
+  private interface Parser {
+    int parse() throws IOException;
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link MultipartReader} class.
+ */
+public class MultipartReaderTest {
+
+  static final String BOUNDARY = "a1b2c3d4-boundary";
+
+  @Test
+  public void testPartsAreReadWithAnyBufferSize() throws Exception {
+    // Given
+    List<byte[]> bodies = new ArrayList<>();
+    Random random = new Random(42);
+    for (int size : new int[] {0, 1, 17, 1000, 70000}) {
+      byte[] body = new byte[size];
+      random.nextBytes(body);
+      bodies.add(body);
+    }
+    // Body containing a partial delimiter
+    bodies.add(("x\r\n--" + BOUNDARY.substring(0, 5) + "y\r\n-").getBytes(StandardCharsets.ISO_8859_1));
+    byte[] payload = multipart("preamble\r\n", bodies);
+
+    for (int bufferSize : new int[] {64, 100, 4096, MultipartReader.DEFAULT_BUFFER_SIZE}) {
+      // When
+      List<byte[]> read = new ArrayList<>();
+      List<String> headers = new ArrayList<>();
+      MultipartReader reader = new MultipartReader(new ByteArrayInputStream(payload),
+          BOUNDARY.getBytes(StandardCharsets.ISO_8859_1), bufferSize);
+      boolean nextPart = reader.skipPreamble();
+      while (nextPart) {
+        headers.add(reader.readHeaders());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        long size = reader.readBodyData(Channels.newChannel(out), crc);
+        assertEquals(out.size(), size);
+        CRC32 expected = new CRC32();
+        expected.update(out.toByteArray());
+        assertEquals(expected.getValue(), crc.getValue());
+        read.add(out.toByteArray());
+        nextPart = reader.readBoundary();
+      }
+
+      // Then
+      assertEquals(bodies.size(), read.size());
+      for (int i = 0; i < bodies.size(); i++) {
+        assertArrayEquals("buffer " + bufferSize + " part " + i, bodies.get(i), read.get(i));
+        assertEquals("Content-Type: application/dicom\r\n", headers.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testStreamWithoutPreamble() throws Exception {
+    // Given
+    byte[] payload = multipart("", Arrays.asList(new byte[] {1, 2, 3}));
+    MultipartReader reader = new MultipartReader(new ByteArrayInputStream(payload),
+        BOUNDARY.getBytes(StandardCharsets.ISO_8859_1));
+
+    // When
+    assertTrue(reader.skipPreamble());
+    reader.readHeaders();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    reader.readBodyData(Channels.newChannel(out), null);
+
+    // Then
+    assertArrayEquals(new byte[] {1, 2, 3}, out.toByteArray());
+    assertFalse(reader.readBoundary());
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedStreamFails() throws Exception {
+    // Given
+    byte[] payload = multipart("", Arrays.asList(new byte[1000]));
+    byte[] truncated = Arrays.copyOf(payload, payload.length - BOUNDARY.length() - 10);
+    MultipartReader reader = new MultipartReader(new ByteArrayInputStream(truncated),
+        BOUNDARY.getBytes(StandardCharsets.ISO_8859_1), 128);
+
+    // When
+    reader.skipPreamble();
+    reader.readHeaders();
+    reader.readBodyData(Channels.newChannel(new ByteArrayOutputStream()), null);
+  }
+
+  static byte[] multipart(String preamble, List<byte[]> bodies) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(preamble.getBytes(StandardCharsets.ISO_8859_1));
+    for (byte[] body : bodies) {
+      out.write(("--" + BOUNDARY + "\r\nContent-Type: application/dicom\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1));
+      out.write(body);
+      out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+    out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+import org.weasis.dicom.google.explorer.download.DownloadScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link PriorityExecutor} class.
+ */
+public class PriorityExecutorTest {
+
+  @Test
+  public void testInteractiveRequestsRunBeforeQueuedPrefetch() throws Exception {
+    // Given
+    PriorityExecutor executor = new PriorityExecutor(1, "test");
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    executor.submit(Priority.PREFETCH, () -> release.await(5, TimeUnit.SECONDS));
+    executor.submit(Priority.BACKGROUND, () -> order.add("background"));
+    executor.submit(Priority.PREFETCH, () -> order.add("prefetch 1"));
+    executor.submit(Priority.PREFETCH, () -> order.add("prefetch 2"));
+
+    // When
+    executor.submit(Priority.INTERACTIVE, () -> order.add("interactive"));
+    release.countDown();
+    Future<Boolean> last = executor.submit(Priority.BACKGROUND, () -> true);
+    last.get(5, TimeUnit.SECONDS);
+
+    // Then
+    assertEquals(Arrays.asList("interactive", "prefetch 1", "prefetch 2", "background"), order);
+  }
+}
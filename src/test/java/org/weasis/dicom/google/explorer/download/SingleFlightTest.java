@@ -0,0 +1,174 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link SingleFlight} class.
+ */
+public class SingleFlightTest {
+
+  @Test
+  public void testConcurrentCallersShareOneExecution() throws Exception {
+    // Given
+    SingleFlight<String, String> flight = new SingleFlight<>();
+    AtomicInteger executions = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    long joined = DownloadMetrics.getCounter(SingleFlight.JOINED);
+
+    // When
+    Future<String> first = executor.submit(() -> flight.execute("study", () -> {
+      executions.incrementAndGet();
+      started.countDown();
+      release.await();
+      return "files";
+    }));
+    started.await();
+    Future<String> second = executor.submit(() -> flight.execute("study", () -> {
+      executions.incrementAndGet();
+      return "other";
+    }));
+    while (DownloadMetrics.getCounter(SingleFlight.JOINED) == joined && !second.isDone()) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+
+    // Then
+    assertEquals("files", first.get(5, TimeUnit.SECONDS));
+    assertEquals("files", second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, executions.get());
+    assertFalse(flight.isInFlight("study"));
+    executor.shutdown();
+  }
+
+  @Test
+  public void testCancelledOperationIsResumedByJoinedCaller() throws Exception {
+    // Given
+    SingleFlight<String, String> flight = new SingleFlight<>();
+    CancellationToken prefetch = new CancellationToken();
+    CountDownLatch started = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    long joined = DownloadMetrics.getCounter(SingleFlight.JOINED);
+    Future<String> first = executor.submit(() -> flight.execute("study", () -> {
+      started.countDown();
+      while (!prefetch.isCancelled()) {
+        Thread.sleep(1);
+      }
+      throw new CancellationException();
+    }));
+    started.await();
+    Future<String> second = executor.submit(() -> flight.executeOrResume("study", () -> "files",
+        new CancellationToken()));
+    while (DownloadMetrics.getCounter(SingleFlight.JOINED) == joined && !second.isDone()) {
+      Thread.sleep(1);
+    }
+
+    // When
+    prefetch.cancel();
+
+    // Then
+    assertEquals("files", second.get(5, TimeUnit.SECONDS));
+    try {
+      first.get(5, TimeUnit.SECONDS);
+      fail("The cancelled operation must fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CancellationException);
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void testFailedOperationIsGoneWhenJoinedCallerWakesUp() throws Exception {
+    // Given
+    SingleFlight<String, String> flight = new SingleFlight<>();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    long joined = DownloadMetrics.getCounter(SingleFlight.JOINED);
+    executor.submit(() -> flight.execute("study", () -> {
+      started.countDown();
+      release.await();
+      throw new CancellationException();
+    }));
+    started.await();
+    Future<Boolean> second = executor.submit(() -> {
+      try {
+        flight.execute("study", () -> "files");
+        return false;
+      } catch (CancellationException e) {
+        return flight.isInFlight("study");
+      }
+    });
+    while (DownloadMetrics.getCounter(SingleFlight.JOINED) == joined && !second.isDone()) {
+      Thread.sleep(1);
+    }
+
+    // When
+    release.countDown();
+
+    // Then
+    assertFalse(second.get(5, TimeUnit.SECONDS));
+    executor.shutdown();
+  }
+
+  @Test(expected = CancellationException.class)
+  public void testOwnCancellationIsNotResumed() throws Exception {
+    // Given
+    SingleFlight<String, String> flight = new SingleFlight<>();
+    CancellationToken cancellation = new CancellationToken();
+    cancellation.cancel();
+
+    // When
+    flight.executeOrResume("study", () -> {
+      throw new CancellationException();
+    }, cancellation);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFailureIsNotCached() throws Exception {
+    // Given
+    SingleFlight<String, String> flight = new SingleFlight<>();
+    try {
+      flight.execute("study", () -> {
+        throw new IllegalStateException("network error");
+      });
+    } catch (IllegalStateException e) {
+      // Expected, a new request must run again
+    }
+
+    // Then
+    assertEquals("files", flight.execute("study", () -> "files"));
+    flight.execute("study", () -> {
+      throw new IllegalStateException("again");
+    });
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.google.api.model.Dataset;
+import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.api.model.Location;
+import org.weasis.dicom.google.api.model.ProjectDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StudyCache} class.
+ */
+public class StudyCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testStudiesSurviveRestart() throws Exception {
+    // Given
+    File root = folder.newFolder("cache");
+    StudyCache cache = new StudyCache(root, 1024);
+    downloadStudy(cache, "1.2.3", 100);
+
+    // When
+    StudyCache restarted = new StudyCache(root, 1024);
+
+    // Then
+    assertTrue(restarted.getStudy("1.2.3").isPresent());
+    assertEquals(1, restarted.getStudy("1.2.3").get().size());
+    assertEquals(100, restarted.getTotalSize());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedStudyIsEvicted() throws Exception {
+    // Given
+    File root = folder.newFolder("cache");
+    StudyCache cache = new StudyCache(root, 150);
+    downloadStudy(cache, "1.1", 100);
+    Thread.sleep(5);
+    downloadStudy(cache, "1.2", 100);
+    // Studies of the current session are never evicted
+    assertEquals(200, cache.getTotalSize());
+
+    // When
+    StudyCache restarted = new StudyCache(root, 150);
+
+    // Then
+    assertFalse(restarted.getStudy("1.1").isPresent());
+    assertTrue(restarted.getStudy("1.2").isPresent());
+    assertFalse(new File(root, StudyCache.toDirName("1.1")).exists());
+  }
+
+  @Test
+  public void testIncompleteStudyCanBeResumedAfterRestart() throws Exception {
+    // Given
+    File root = folder.newFolder("cache");
+    StudyCache cache = new StudyCache(root, 1024);
+    File dir = cache.prepareStudy("1.2.3");
+    cache.addInstance("1.2.3", createPart(dir, 10, "1.2.3.1"));
+    cache.addInstance("1.2.3", createPart(dir, 10, "1.2.3.2"));
+    cache.save();
+
+    // When
+    StudyCache restarted = new StudyCache(root, 1024);
+
+    // Then
+    assertFalse(restarted.getStudy("1.2.3").isPresent());
+    Map<String, File> partial = restarted.getPartialInstances("1.2.3");
+    assertEquals(2, partial.size());
+    assertTrue(partial.containsKey("1.2.3.1"));
+    assertTrue(partial.containsKey("1.2.3.2"));
+  }
+
+  @Test
+  public void testStudySizeCountsIncompleteStudies() throws Exception {
+    // Given
+    File root = folder.newFolder("cache");
+    StudyCache cache = new StudyCache(root, 1024);
+    File dir = cache.prepareStudy("1.2.3");
+
+    // When
+    cache.addInstance("1.2.3", createPart(dir, 10, "1.2.3.1"));
+    cache.addInstance("1.2.3", createPart(dir, 20, "1.2.3.2"));
+
+    // Then
+    assertEquals(30, cache.getStudySize("1.2.3"));
+    assertEquals(0, cache.getStudySize("4.5.6"));
+  }
+
+  @Test
+  public void testCorruptedPartialInstanceIsDiscarded() throws Exception {
+    // Given
+    File root = folder.newFolder("cache");
+    StudyCache cache = new StudyCache(root, 1024);
+    File dir = cache.prepareStudy("1.2.3");
+    cache.addInstance("1.2.3", createPart(dir, 10, "1.2.3.1"));
+    DicomPart corrupted = createPart(dir, 10, "1.2.3.2");
+    cache.addInstance("1.2.3", corrupted);
+    Files.write(corrupted.getFile().toPath(), new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+
+    // When
+    Map<String, File> partial = cache.getPartialInstances("1.2.3");
+
+    // Then
+    assertEquals(1, partial.size());
+    assertTrue(partial.containsKey("1.2.3.1"));
+    assertFalse(corrupted.getFile().exists());
+    assertEquals(10, cache.getTotalSize());
+  }
+
+  @Test
+  public void testSameStudyOfTwoStoresIsCachedSeparately() throws Exception {
+    // Given
+    File root = folder.newFolder("cache");
+    StudyCache cache = new StudyCache(root, 1024);
+    Dataset dataset = new Dataset(new Location(new ProjectDescriptor("Project", "project"), "US", "us"), "dataset");
+    String first = StudyCache.getStudyKey(new DicomStore(dataset, "first"), "1.2.3");
+    String second = StudyCache.getStudyKey(new DicomStore(dataset, "second"), "1.2.3");
+
+    // When
+    downloadStudy(cache, first, 100);
+
+    // Then
+    assertTrue(cache.isCached(first));
+    assertFalse(cache.isCached(second));
+    assertFalse(cache.getStudy(second).isPresent());
+  }
+
+  private static void downloadStudy(StudyCache cache, String studyUid, int size) throws IOException {
+    File dir = cache.prepareStudy(studyUid);
+    cache.addInstance(studyUid, createPart(dir, size, studyUid + ".1"));
+    cache.markComplete(studyUid);
+  }
+
+  private static DicomPart createPart(File dir, int size, String sopUid) throws IOException {
+    File file = File.createTempFile("gcp_", ".dcm", dir);
+    byte[] data = new byte[size];
+    Files.write(file.toPath(), data);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    Map<String, String> headers = new HashMap<>();
+    headers.put(DicomPart.CONTENT_LOCATION, "/studies/1/series/2/instances/" + sopUid);
+    return new DicomPart(file, headers, size, crc.getValue());
+  }
+}
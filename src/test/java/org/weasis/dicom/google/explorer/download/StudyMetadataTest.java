@@ -0,0 +1,86 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link StudyMetadata} class.
+ */
+public class StudyMetadataTest {
+
+  @Test
+  public void testSeriesAndInstancesAreOrderedByNumber() throws Exception {
+    // Given
+    String json = "["
+        + instance("1.2", 2, "1.2.2", 1)
+        + "," + instance("1.1", 1, "1.1.2", 2)
+        + "," + instance("1.1", 1, "1.1.1", 1)
+        + "]";
+
+    // When
+    StudyMetadata metadata = parse(json);
+
+    // Then
+    assertEquals(2, metadata.getSeries().size());
+    assertEquals(3, metadata.getInstanceCount());
+    StudyMetadata.Series first = metadata.getSeries().get(0);
+    assertEquals("1.1", first.getUid());
+    assertEquals("CT", first.getModality());
+    assertEquals("1.1.1", first.getInstances().get(0).getUid());
+    assertEquals("1.1.2", first.getInstances().get(1).getUid());
+    assertEquals("1.2", metadata.getSeries().get(1).getUid());
+  }
+
+  @Test
+  public void testOtherAttributesAreSkipped() throws Exception {
+    // Given
+    String json = "[{"
+        + "\"00081115\":{\"vr\":\"SQ\",\"Value\":[{\"0020000E\":{\"vr\":\"UI\",\"Value\":[\"nested\"]}}]},"
+        + "\"00100010\":{\"vr\":\"PN\",\"Value\":[{\"Alphabetic\":\"Doe^John\"}]},"
+        + "\"7FE00010\":{\"vr\":\"OW\",\"BulkDataURI\":\"http://example/bulk\"},"
+        + "\"0020000E\":{\"vr\":\"UI\",\"Value\":[\"1.1\"]},"
+        + "\"00080018\":{\"vr\":\"UI\",\"Value\":[\"1.1.1\"]},"
+        + "\"00200013\":{\"vr\":\"IS\"}"
+        + "}]";
+
+    // When
+    StudyMetadata metadata = parse(json);
+
+    // Then
+    assertEquals("1.1", metadata.getSeries().get(0).getUid());
+    assertNull(metadata.getSeries().get(0).getNumber());
+    assertNull(metadata.getSeries().get(0).getInstances().get(0).getNumber());
+  }
+
+  private static String instance(String seriesUid, int seriesNumber, String sopUid, int instanceNumber) {
+    return "{\"0020000E\":{\"vr\":\"UI\",\"Value\":[\"" + seriesUid + "\"]},"
+        + "\"00200011\":{\"vr\":\"IS\",\"Value\":[" + seriesNumber + "]},"
+        + "\"00080060\":{\"vr\":\"CS\",\"Value\":[\"CT\"]},"
+        + "\"00080018\":{\"vr\":\"UI\",\"Value\":[\"" + sopUid + "\"]},"
+        + "\"00200013\":{\"vr\":\"IS\",\"Value\":[" + instanceNumber + "]}}";
+  }
+
+  private static StudyMetadata parse(String json) throws IOException {
+    return StudyMetadata.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+}
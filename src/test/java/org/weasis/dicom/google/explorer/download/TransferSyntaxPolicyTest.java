@@ -0,0 +1,82 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.After;
+import org.junit.Test;
+import org.weasis.dicom.google.api.model.Dataset;
+import org.weasis.dicom.google.api.model.DicomStore;
+import org.weasis.dicom.google.api.model.Location;
+import org.weasis.dicom.google.api.model.ProjectDescriptor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link TransferSyntaxPolicy} class.
+ */
+public class TransferSyntaxPolicyTest {
+
+  private final DicomStore store = new DicomStore(
+      new Dataset(new Location(new ProjectDescriptor("project", "project"), "us", "us"), "dataset"), "store");
+
+  @After
+  public void tearDown() {
+    System.clearProperty(DownloadSettings.TRANSFER_SYNTAX);
+    System.clearProperty(DownloadSettings.TRANSFER_SYNTAX + ".store");
+  }
+
+  @Test
+  public void testStoreSettingOverridesGlobalSetting() {
+    // Given
+    System.setProperty(DownloadSettings.TRANSFER_SYNTAX, "explicit");
+    System.setProperty(DownloadSettings.TRANSFER_SYNTAX + ".store", "jpegls");
+
+    // When
+    TransferSyntax syntax = new TransferSyntaxPolicy().select(store);
+
+    // Then
+    assertEquals(TransferSyntax.JPEG_LS_LOSSLESS, syntax);
+  }
+
+  @Test
+  public void testAutoSelectsCompressionOnSlowLink() {
+    // Given
+    System.setProperty(DownloadSettings.TRANSFER_SYNTAX, TransferSyntaxPolicy.AUTO);
+    TransferSyntaxPolicy policy = new TransferSyntaxPolicy();
+    assertEquals(TransferSyntax.ANY, policy.select(store));
+
+    // When, 10 MB in 4 s is 20 Mbit/s
+    policy.recordThroughput(store, 10_000_000, 4000);
+
+    // Then
+    assertEquals(TransferSyntax.JPEG2000_LOSSLESS, policy.select(store));
+    policy.recordThroughput(store, 1_000_000_000, 1000);
+    policy.recordThroughput(store, 1_000_000_000, 1000);
+    assertEquals(TransferSyntax.EXPLICIT_VR_LITTLE_ENDIAN, policy.select(store));
+  }
+
+  @Test
+  public void testNotAcceptableSyntaxFallsBackToAny() {
+    // Given
+    System.setProperty(DownloadSettings.TRANSFER_SYNTAX, "j2k");
+    TransferSyntaxPolicy policy = new TransferSyntaxPolicy();
+
+    // When
+    policy.markNotAcceptable(store, TransferSyntax.JPEG2000_LOSSLESS);
+
+    // Then
+    assertEquals(TransferSyntax.ANY, policy.select(store));
+  }
+}
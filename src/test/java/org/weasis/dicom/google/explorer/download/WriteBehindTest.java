@@ -0,0 +1,157 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.weasis.dicom.google.explorer.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link WriteBehind} class.
+ */
+public class WriteBehindTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPartsAreWrittenInOrder() throws Exception {
+    // Given, fewer buffers than needed by a single part
+    WriteBehind writeBehind = new WriteBehind(2, 4, 16);
+    Random random = new Random(7);
+    List<byte[]> bodies = new ArrayList<>();
+    List<File> files = new ArrayList<>();
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+    // When
+    for (int i = 0; i < 10; i++) {
+      byte[] body = new byte[random.nextInt(500)];
+      random.nextBytes(body);
+      File file = folder.newFile();
+      WriteBehind.PartChannel channel = writeBehind.open(file);
+      for (int offset = 0; offset < body.length; offset += 37) {
+        channel.write(ByteBuffer.wrap(body, offset, Math.min(37, body.length - offset)));
+      }
+      bodies.add(body);
+      files.add(file);
+      futures.add(channel.commit());
+    }
+
+    // Then
+    for (int i = 0; i < bodies.size(); i++) {
+      futures.get(i).get(5, TimeUnit.SECONDS);
+      assertArrayEquals(bodies.get(i), Files.readAllBytes(files.get(i).toPath()));
+    }
+  }
+
+  @Test
+  public void testAbortedPartIsDeleted() throws Exception {
+    // Given
+    WriteBehind writeBehind = new WriteBehind(1, 4, 16);
+    File file = folder.newFile();
+    WriteBehind.PartChannel channel = writeBehind.open(file);
+    channel.write(ByteBuffer.wrap(new byte[100]));
+
+    // When
+    channel.close();
+
+    // Then, the writer handles operations in order
+    File other = folder.newFile();
+    writeBehind.open(other).commit().get(5, TimeUnit.SECONDS);
+    assertFalse(file.exists());
+  }
+
+  @Test(timeout = 10000)
+  public void testPartAbortedByInterruptedThreadIsDeleted() throws Exception {
+    // Given
+    WriteBehind writeBehind = new WriteBehind(1, 4, 16);
+    File file = folder.newFile();
+    WriteBehind.PartChannel channel = writeBehind.open(file);
+    channel.write(ByteBuffer.wrap(new byte[40]));
+
+    // When, the download is cancelled
+    Thread.currentThread().interrupt();
+    channel.close();
+
+    // Then
+    assertTrue(Thread.interrupted());
+    File other = folder.newFile();
+    writeBehind.open(other).commit().get(5, TimeUnit.SECONDS);
+    assertFalse(file.exists());
+    for (int i = 0; i < 4; i++) {
+      // Each partial write holds a buffer, a leaked one would block
+      writeBehind.open(folder.newFile()).write(ByteBuffer.wrap(new byte[8]));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testPartInterruptedDuringCommitIsDeleted() throws Exception {
+    // Given, two full buffers already queued
+    WriteBehind writeBehind = new WriteBehind(1, 4, 16);
+    File file = folder.newFile();
+    WriteBehind.PartChannel channel = writeBehind.open(file);
+    channel.write(ByteBuffer.wrap(new byte[32]));
+
+    // When, the download is cancelled while committing
+    Thread.currentThread().interrupt();
+    try {
+      channel.commit();
+      fail("Expected the commit to be interrupted");
+    } catch (InterruptedIOException e) {
+      // Expected
+    }
+    channel.close();
+
+    // Then
+    assertTrue(Thread.interrupted());
+    writeBehind.open(folder.newFile()).commit().get(5, TimeUnit.SECONDS);
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testWriteFailureIsReported() throws Exception {
+    // Given
+    WriteBehind writeBehind = new WriteBehind(1, 4, 16);
+    File directory = folder.newFolder();
+    WriteBehind.PartChannel channel = writeBehind.open(directory);
+    channel.write(ByteBuffer.wrap(new byte[10]));
+
+    // When
+    try {
+      channel.commit().get(5, TimeUnit.SECONDS);
+      fail("Expected a write failure");
+    } catch (ExecutionException e) {
+      // Then
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}